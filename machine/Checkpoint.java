@@ -0,0 +1,190 @@
+// PART OF THE MACHINE SIMULATION. DO NOT CHANGE.
+
+package nachos.machine;
+
+import nachos.security.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Saves and restores the state of the simulated hardware: the registers and
+ * TLB or page table of the processor, physical memory, the statistics, and
+ * the time of the next interrupt of each periodic kind: the timer, the
+ * autograder's timer, and the console polling for input. The state is kept in
+ * a single file, which is memory-mapped to read or write it.
+ *
+ * <p>
+ * Other pending interrupts belong to I/O in progress, whose handlers and
+ * device state can't be written to a file, so none may be pending when the
+ * checkpoint is taken.
+ *
+ * <p>
+ * Kernel state (threads, open files, process tables) lives in Java objects and
+ * is not saved. A kernel that supports warm starts checks
+ * <tt>Machine.restoredFromCheckpoint()</tt> and, if it is set, resumes the
+ * user program that was running when the checkpoint was taken instead of
+ * loading it again; <tt>UserKernel</tt> does this with
+ * <tt>UserProcess.resume()</tt>.
+ */
+final class Checkpoint {
+    private Checkpoint() {
+    }
+
+    /**
+     * Save the state of the machine to the specified file. No interrupt other
+     * than the periodic ones may be pending.
+     *
+     * @param	privilege	encapsulates privileged access to the Nachos
+     *				machine.
+     * @param	fileName	the file to write.
+     */
+    static void save(final Privilege privilege, String fileName) {
+	final Interrupt interrupt = Machine.interrupt();
+	Lib.assertTrue(interrupt.onlyPending(periodicTypes),
+		       "can't checkpoint while I/O is in progress");
+
+	// the statistics are saved first, so count every batched tick now
+	Machine.processor().settleTicks();
+
+	final File file = new File(fileName);
+	final int fileSize = headerSize + Machine.processor().stateSize() +
+	    Machine.processor().getNumPhysPages() * Processor.pageSize;
+
+	privilege.doPrivileged(new Runnable() {
+		public void run() {
+		    ByteBuffer buf = map(file, fileSize, true);
+
+		    buf.putInt(magic);
+		    buf.putInt(Machine.processor().getNumPhysPages());
+
+		    saveStats(privilege.stats, buf);
+		    for (int i=0; i<periodicTypes.length; i++)
+			buf.putLong(interrupt.pendingTime(periodicTypes[i]));
+
+		    Machine.processor().saveState(buf);
+		    Machine.processor().saveMemory(buf);
+		}
+	    });
+
+	Lib.debug(dbgCheckpoint, "saved checkpoint " + fileName + " at time "
+		  + privilege.stats.totalTicks);
+    }
+
+    /**
+     * Restore the state of the machine from the specified file. The machine
+     * must be configured with the same number of physical pages as when the
+     * checkpoint was saved.
+     *
+     * @param	privilege	encapsulates privileged access to the Nachos
+     *				machine.
+     * @param	fileName	the file to read.
+     */
+    static void restore(final Privilege privilege, String fileName) {
+	final File file = new File(fileName);
+
+	privilege.doPrivileged(new Runnable() {
+		public void run() {
+		    ByteBuffer buf = map(file, 0, false);
+
+		    Lib.assertTrue(buf.getInt() == magic,
+				   "not a checkpoint file");
+		    Lib.assertTrue(buf.getInt() ==
+				   Machine.processor().getNumPhysPages(),
+				   "checkpoint is for a different machine");
+
+		    restoreStats(privilege.stats, buf);
+
+		    for (int i=0; i<periodicTypes.length; i++) {
+			long time = buf.getLong();
+			if (time != -1)
+			    Machine.interrupt().reschedule(periodicTypes[i], time);
+		    }
+
+		    Machine.processor().restoreState(buf);
+		    Machine.processor().restoreMemory(buf);
+		}
+	    });
+    }
+
+    private static ByteBuffer map(File file, int size, boolean writing) {
+	try {
+	    FileChannel channel;
+	    MappedByteBuffer buf;
+
+	    if (writing) {
+		channel = FileChannel.open(file.toPath(),
+					   StandardOpenOption.CREATE,
+					   StandardOpenOption.TRUNCATE_EXISTING,
+					   StandardOpenOption.READ,
+					   StandardOpenOption.WRITE);
+		buf = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+	    }
+	    else {
+		channel = FileChannel.open(file.toPath(),
+					   StandardOpenOption.READ);
+		buf = channel.map(FileChannel.MapMode.READ_ONLY, 0,
+				  channel.size());
+	    }
+
+	    // the mapping stays valid after the channel is closed
+	    channel.close();
+	    return buf;
+	}
+	catch (IOException e) {
+	    Lib.assertNotReached("could not map checkpoint file " + file);
+	    return null;
+	}
+    }
+
+    private static void saveStats(Stats stats, ByteBuffer buf) {
+	buf.putLong(stats.totalTicks);
+	buf.putLong(stats.kernelTicks);
+	buf.putLong(stats.userTicks);
+	buf.putInt(stats.numDiskReads);
+	buf.putInt(stats.numDiskWrites);
+	buf.putInt(stats.numConsoleReads);
+	buf.putInt(stats.numConsoleWrites);
+	buf.putInt(stats.numPageFaults);
+	buf.putInt(stats.numTLBMisses);
+	buf.putInt(stats.numPacketsSent);
+	buf.putInt(stats.numPacketsReceived);
+	buf.putInt(stats.numHostThreadsCreated);
+	buf.putInt(stats.numHostThreadsReused);
+	buf.putInt(stats.maxHostThreadsPooled);
+    }
+
+    private static void restoreStats(Stats stats, ByteBuffer buf) {
+	stats.totalTicks = buf.getLong();
+	stats.kernelTicks = buf.getLong();
+	stats.userTicks = buf.getLong();
+	stats.numDiskReads = buf.getInt();
+	stats.numDiskWrites = buf.getInt();
+	stats.numConsoleReads = buf.getInt();
+	stats.numConsoleWrites = buf.getInt();
+	stats.numPageFaults = buf.getInt();
+	stats.numTLBMisses = buf.getInt();
+	stats.numPacketsSent = buf.getInt();
+	stats.numPacketsReceived = buf.getInt();
+	stats.numHostThreadsCreated = buf.getInt();
+	stats.numHostThreadsReused = buf.getInt();
+	stats.maxHostThreadsPooled = buf.getInt();
+    }
+
+    private static final int magic = 0x4E434B50;	// "NCKP"
+    /**
+     * The interrupt types that are always pending while their device exists,
+     * and carry no state but their due time, which is saved.
+     */
+    private static final String[] periodicTypes =
+	{ "timer", "timerAG", "console read" };
+
+    private static final int headerSize =
+	4*2 + 8*3 + 4*11 + 8*periodicTypes.length;
+
+    private static final char dbgCheckpoint = 'k';
+}
@@ -5,7 +5,6 @@ package nachos.machine;
 import nachos.security.*;
 
 import java.io.EOFException;
-import java.util.Arrays;
 
 /**
  * A <tt>CoffSection</tt> manages a single section within a COFF executable.
@@ -180,7 +179,7 @@ public class CoffSection {
 	Lib.assertTrue(ppn>=0 && ppn<Machine.processor().getNumPhysPages());
 
 	int pageSize = Processor.pageSize;
-	byte[] memory = Machine.processor().getMemory();
+	byte[] page = new byte[pageSize];
 	int paddr = ppn*pageSize;
 	int faddr = contentOffset + spn*pageSize;
 	int initlen;
@@ -192,10 +191,11 @@ public class CoffSection {
 	else
 	    initlen = pageSize;
 
+	// the rest of the page is left zero
 	if (initlen > 0)
-	    Lib.strictReadFile(file, faddr, memory, paddr, initlen);
+	    Lib.strictReadFile(file, faddr, page, 0, initlen);
 
-	Arrays.fill(memory, paddr+initlen, paddr+pageSize, (byte) 0);
+	Machine.processor().writeMemory(paddr, page, 0, pageSize);
     }
 
     /** The COFF object to which this section belongs. */
@@ -4,9 +4,7 @@ package nachos.machine;
 
 import nachos.security.*;
 
-import java.util.TreeSet;
-import java.util.Iterator;
-import java.util.SortedSet;
+import java.util.Arrays;
 
 /**
  * The <tt>Interrupt</tt> class emulates low-level interrupt hardware. The
@@ -53,7 +51,17 @@ public final class Interrupt {
 	privilege.interrupt = new InterruptPrivilege();
 	
 	enabled = false;
-	pending = new TreeSet<PendingInterrupt>();
+
+	heapTime = new long[initialCapacity];
+	heapSequence = new long[initialCapacity];
+	heapSlot = new int[initialCapacity];
+
+	slotType = new String[initialCapacity];
+	slotHandler = new Runnable[initialCapacity];
+	slotPosition = new int[initialCapacity];
+	slotGeneration = new int[initialCapacity];
+	freeSlots = new int[initialCapacity];
+	addFreeSlots(0, initialCapacity);
     }
 
     /**
@@ -120,17 +128,86 @@ public final class Interrupt {
 	return !enabled;
     }
 
-    private void schedule(long when, String type, Runnable handler) {
+    /**
+     * Advance the simulated time as if the processor had been idling in
+     * kernel mode, one kernel tick at a time, until the tick just before the
+     * one on which the next pending interrupt becomes due. The next tick
+     * then causes that interrupt, exactly when it would have without this
+     * call, but the ticks in between are accounted for at once.
+     *
+     * <p>
+     * Should only be called, with interrupts disabled, when no thread can
+     * run until an interrupt occurs. Does nothing while an interrupt
+     * handler is running, or if the <tt>i</tt> debug flag is set.
+     */
+    public void idle() {
+	Lib.assertTrue(disabled());
+
+	if (numHandlersRunning > 0)
+	    return;
+
+	long due = nextInterruptTime();
+	if (due == Long.MAX_VALUE)
+	    return;
+
+	Stats stats = privilege.stats;
+	
+	// number of whole kernel ticks that end strictly before the deadline
+	long idleTicks = (due - stats.totalTicks + Stats.KernelTick - 1) /
+	    Stats.KernelTick - 1;
+	if (idleTicks <= 0)
+	    return;
+
+	stats.kernelTicks += idleTicks * Stats.KernelTick;
+	stats.totalTicks += idleTicks * Stats.KernelTick;
+    }
+
+    private long schedule(long when, String type, Runnable handler) {
 	Lib.assertTrue(when>0);
 	
 	long time = privilege.stats.totalTicks + when;
-	PendingInterrupt toOccur = new PendingInterrupt(time, type, handler);
 
-	Lib.debug(dbgInt,
-		  "Scheduling the " + type +
-		  " interrupt handler at time = " + time);
+	if (Lib.test(dbgInt))
+	    System.out.println("Scheduling the " + type +
+			       " interrupt handler at time = " + time);
+
+	if (numFreeSlots == 0)
+	    grow();
+
+	int slot = freeSlots[--numFreeSlots];
+	slotType[slot] = type;
+	slotHandler[slot] = handler;
+
+	// new interrupts go at the bottom of the heap and rise to their place
+	int position = numPending++;
+	heapTime[position] = time;
+	heapSequence[position] = numPendingInterruptsCreated++;
+	heapSlot[position] = slot;
+	slotPosition[slot] = position;
+	siftUp(position);
 
-	pending.add(toOccur);
+	return ((long) slotGeneration[slot] << 32) | slot;
+    }
+
+    /**
+     * Retract an interrupt scheduled by <tt>schedule()</tt>, if it is still
+     * pending.
+     *
+     * @param	handle	the handle returned by <tt>schedule()</tt>.
+     * @return	<tt>true</tt> if the interrupt was pending and will not occur.
+     */
+    private boolean cancel(long handle) {
+	int slot = (int) handle;
+	if (slot < 0 || slot >= slotPosition.length ||
+	    slotGeneration[slot] != (int) (handle >>> 32) ||
+	    slotPosition[slot] == -1)
+	    return false;
+
+	Lib.debug(dbgInt, "Cancelling the " + slotType[slot] +
+		  " interrupt handler");
+
+	removeAt(slotPosition[slot]);
+	return true;
     }
 
     private void tick(boolean inKernelMode) {
@@ -153,6 +230,78 @@ public final class Interrupt {
 	enabled = true;
     }
 
+    private long nextInterruptTime() {
+	// tracing interrupts requires going through tick() every time
+	if (Lib.test(dbgInt))
+	    return privilege.stats.totalTicks;
+
+	if (numPending == 0)
+	    return Long.MAX_VALUE;
+
+	return heapTime[0];
+    }
+
+    /**
+     * Return the time at which the first pending interrupt of the specified
+     * type is due.
+     *
+     * @param	type	the interrupt type.
+     * @return	the time it is due, or -1 if there is none.
+     */
+    long pendingTime(String type) {
+	int first = -1;
+	for (int i=0; i<numPending; i++) {
+	    if (slotType[heapSlot[i]].equals(type) &&
+		(first == -1 || before(i, first)))
+		first = i;
+	}
+
+	return (first == -1) ? -1 : heapTime[first];
+    }
+
+    /**
+     * Test whether every pending interrupt is of one of the specified types.
+     *
+     * @param	types	the interrupt types to allow.
+     * @return	<tt>true</tt> if no other type of interrupt is pending.
+     */
+    boolean onlyPending(String[] types) {
+	for (int i=0; i<numPending; i++) {
+	    String type = slotType[heapSlot[i]];
+	    
+	    boolean allowed = false;
+	    for (int j=0; j<types.length; j++)
+		allowed |= type.equals(types[j]);
+
+	    if (!allowed)
+		return false;
+	}
+
+	return true;
+    }
+
+    /**
+     * Move every pending interrupt of the specified type to a new time. Used
+     * to restore a checkpoint.
+     *
+     * @param	type	the interrupt type.
+     * @param	time	the time at which those interrupts should be due.
+     */
+    void reschedule(String type, long time) {
+	// the moved interrupts keep their order, after all existing ones
+	int[] order = sortedPositions();
+	for (int i=0; i<order.length; i++) {
+	    int position = order[i];
+	    if (slotType[heapSlot[position]].equals(type)) {
+		heapTime[position] = time;
+		heapSequence[position] = numPendingInterruptsCreated++;
+	    }
+	}
+
+	for (int i=numPending/2-1; i>=0; i--)
+	    siftDown(i);
+    }
+
     private void checkIfDue() {
 	long time = privilege.stats.totalTicks;
 
@@ -161,27 +310,27 @@ public final class Interrupt {
 	if (Lib.test(dbgInt))
 	    print();
 
-	if (pending.isEmpty())
-	    return;
-
-	if (((PendingInterrupt) pending.first()).time > time)
+	if (numPending == 0 || heapTime[0] > time)
 	    return;
 
 	Lib.debug(dbgInt, "Invoking interrupt handlers at time = " + time);
 	
-	while (!pending.isEmpty() &&
-	       ((PendingInterrupt) pending.first()).time <= time) {
-	    PendingInterrupt next = (PendingInterrupt) pending.first();
-	    pending.remove(next);
+	while (numPending > 0 && heapTime[0] <= time) {
+	    int slot = heapSlot[0];
+	    String type = slotType[slot];
+	    Runnable handler = slotHandler[slot];
 
-	    Lib.assertTrue(next.time <= time);
+	    // the handler may schedule again, and reuse the slot
+	    removeAt(0);
 
 	    if (privilege.processor != null)
 		privilege.processor.flushPipe();
 
-	    Lib.debug(dbgInt, "  " + next.type);
-			
-	    next.handler.run();
+	    Lib.debug(dbgInt, "  " + type);
+
+	    numHandlersRunning++;
+	    handler.run();
+	    numHandlersRunning--;
 	}
 
 	Lib.debug(dbgInt, "  (end of list)");
@@ -192,62 +341,187 @@ public final class Interrupt {
 			   + ", interrupts " + (enabled ? "on" : "off"));
 	System.out.println("Pending interrupts:");
 
-	for (Iterator i=pending.iterator(); i.hasNext(); ) {
-	    PendingInterrupt toOccur = (PendingInterrupt) i.next();
-	    System.out.println("  " + toOccur.type +
-			       ", scheduled at " + toOccur.time);
+	int[] order = sortedPositions();
+	for (int i=0; i<order.length; i++) {
+	    System.out.println("  " + slotType[heapSlot[order[i]]] +
+			       ", scheduled at " + heapTime[order[i]]);
 	}
 
 	System.out.println("  (end of list)");
     }
 
-    private class PendingInterrupt implements Comparable {
-	PendingInterrupt(long time, String type, Runnable handler) {
-	    this.time = time;
-	    this.type = type;
-	    this.handler = handler;
-	    this.id = numPendingInterruptsCreated++;
+    /**
+     * Test whether the interrupt at one heap position is due before the
+     * interrupt at another. Interrupts due at the same time occur in the
+     * order they were scheduled.
+     */
+    private boolean before(int i, int j) {
+	return heapTime[i] < heapTime[j] ||
+	    (heapTime[i] == heapTime[j] && heapSequence[i] < heapSequence[j]);
+    }
+
+    private void siftUp(int position) {
+	while (position > 0) {
+	    int parent = (position-1) / 2;
+	    if (!before(position, parent))
+		break;
+
+	    swap(position, parent);
+	    position = parent;
 	}
+    }
+
+    private void siftDown(int position) {
+	while (true) {
+	    int child = position*2 + 1;
+	    if (child >= numPending)
+		break;
+
+	    if (child+1 < numPending && before(child+1, child))
+		child++;
+
+	    if (!before(child, position))
+		break;
+
+	    swap(position, child);
+	    position = child;
+	}
+    }
+
+    private void swap(int i, int j) {
+	long time = heapTime[i];
+	heapTime[i] = heapTime[j];
+	heapTime[j] = time;
+
+	long sequence = heapSequence[i];
+	heapSequence[i] = heapSequence[j];
+	heapSequence[j] = sequence;
+
+	int slot = heapSlot[i];
+	heapSlot[i] = heapSlot[j];
+	heapSlot[j] = slot;
 
-	public int compareTo(Object o) {
-	    PendingInterrupt toOccur = (PendingInterrupt) o;
+	slotPosition[heapSlot[i]] = i;
+	slotPosition[heapSlot[j]] = j;
+    }
 
-	    // can't return 0 for unequal objects, so check all fields
-	    if (time < toOccur.time)
-		return -1;
-	    else if (time > toOccur.time)
-		return 1;
-	    else if (id < toOccur.id)
-		return -1;
-	    else if (id > toOccur.id)
-		return 1;
-	    else
-		return 0;
+    /**
+     * Remove the interrupt at the specified heap position, and return its
+     * slot to the pool. Any handle to it becomes stale.
+     */
+    private void removeAt(int position) {
+	int slot = heapSlot[position];
+
+	// move the last interrupt into the hole, then restore the heap order
+	int last = --numPending;
+	if (position != last) {
+	    swap(position, last);
+	    siftDown(position);
+	    siftUp(position);
 	}
 
-	long time;
-	String type;
-	Runnable handler;
+	slotType[slot] = null;
+	slotHandler[slot] = null;
+	slotPosition[slot] = -1;
+	slotGeneration[slot]++;
+	freeSlots[numFreeSlots++] = slot;
+    }
+
+    /**
+     * Double the capacity of the heap and the slot pool.
+     */
+    private void grow() {
+	int capacity = heapTime.length;
+	int newCapacity = capacity*2;
+
+	heapTime = Arrays.copyOf(heapTime, newCapacity);
+	heapSequence = Arrays.copyOf(heapSequence, newCapacity);
+	heapSlot = Arrays.copyOf(heapSlot, newCapacity);
+
+	slotType = Arrays.copyOf(slotType, newCapacity);
+	slotHandler = Arrays.copyOf(slotHandler, newCapacity);
+	slotPosition = Arrays.copyOf(slotPosition, newCapacity);
+	slotGeneration = Arrays.copyOf(slotGeneration, newCapacity);
+	freeSlots = Arrays.copyOf(freeSlots, newCapacity);
+	addFreeSlots(capacity, newCapacity);
+    }
 
-	private long id;
+    private void addFreeSlots(int from, int to) {
+	// hand out low slots first
+	for (int slot=to-1; slot>=from; slot--) {
+	    slotPosition[slot] = -1;
+	    freeSlots[numFreeSlots++] = slot;
+	}
     }
-    
+
+    /**
+     * Return the heap positions of all pending interrupts, in the order they
+     * will occur. Allocates, so only used when debugging or checkpointing.
+     */
+    private int[] sortedPositions() {
+	int[] order = new int[numPending];
+
+	// insertion sort; only a few interrupts are ever pending
+	for (int i=0; i<numPending; i++) {
+	    int j = i;
+	    while (j > 0 && before(i, order[j-1])) {
+		order[j] = order[j-1];
+		j--;
+	    }
+	    order[j] = i;
+	}
+	
+	return order;
+    }
+
     private long numPendingInterruptsCreated = 0;
 
     private Privilege privilege;
 
     private boolean enabled;
-    private TreeSet<PendingInterrupt> pending;
+    /** The number of interrupt handlers running, counting nested ones. */
+    private int numHandlersRunning = 0;
+
+    /*
+     * The pending interrupts form a binary min-heap ordered by time, then by
+     * sequence number, kept in parallel arrays indexed by heap position.
+     * heapSlot[] names the slot holding the rest of each interrupt (its type
+     * and handler), and slotPosition[] points back into the heap, or is -1 if
+     * the slot is free. Slots are pooled, so scheduling doesn't allocate;
+     * slotGeneration[] is bumped every time a slot is freed, so that stale
+     * cancellation handles are ignored.
+     */
+    private long[] heapTime;
+    private long[] heapSequence;
+    private int[] heapSlot;
+    private int numPending = 0;
+
+    private String[] slotType;
+    private Runnable[] slotHandler;
+    private int[] slotPosition;
+    private int[] slotGeneration;
+    private int[] freeSlots;
+    private int numFreeSlots = 0;
+
+    private static final int initialCapacity = 16;
 
     private static final char dbgInt = 'i';
 
     private class InterruptPrivilege implements Privilege.InterruptPrivilege {
-	public void schedule(long when, String type, Runnable handler) {
-	    Interrupt.this.schedule(when, type, handler);
+	public long schedule(long when, String type, Runnable handler) {
+	    return Interrupt.this.schedule(when, type, handler);
+	}
+
+	public boolean cancel(long handle) {
+	    return Interrupt.this.cancel(handle);
 	}
 
 	public void tick(boolean inKernelMode) {
 	    Interrupt.this.tick(inKernelMode);
 	}
+
+	public long nextInterruptTime() {
+	    return Interrupt.this.nextInterruptTime();
+	}
     }
 }
@@ -6,6 +6,11 @@ import nachos.security.*;
 import nachos.ag.*;
 
 import java.io.File;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * The master class of the simulated machine. Processes command line arguments,
@@ -56,6 +61,12 @@ public final class Machine {
 	createDevices();
 	checkUserClasses();
 
+	if (checkpointFileName != null) {
+	    Lib.assertTrue(processor != null, "no processor to restore");
+	    System.out.print(" checkpoint");
+	    Checkpoint.restore(privilege, checkpointFileName);
+	}
+
 	autoGrader = (AutoGrader) Lib.constructObject(autoGraderClassName);
 
 	new TCB().start(new Runnable() {
@@ -92,14 +103,122 @@ public final class Machine {
     }
 
     /**
-     * Print stats, and terminate Nachos.
+     * Print stats, and the instruction profile if there is one, and terminate
+     * Nachos.
      */
     public static void halt() {
 	System.out.print("Machine halting!\n\n");
 	stats.print();
+
+	if (processor != null && processor.getProfiler() != null)
+	    processor.getProfiler().print();
 	terminate();
     }
 
+    /**
+     * Save the state of the simulated hardware (processor registers, TLBs or
+     * page tables, physical memory, statistics, and the timers and console
+     * input poll) to a file, from which a later run can be started with the
+     * <tt>-r</tt> switch. No other interrupt may be pending, so no I/O can be
+     * in progress.
+     *
+     * @param	fileName	the checkpoint file to write.
+     */
+    public static void checkpoint(String fileName) {
+	Lib.assertTrue(processor != null, "no processor to checkpoint");
+	Checkpoint.save(privilege, fileName);
+    }
+
+    /**
+     * Test whether the hardware state was restored from a checkpoint with
+     * the <tt>-r</tt> switch. If so, the kernel should resume the user
+     * program that was running when the checkpoint was saved, rather than
+     * load one.
+     *
+     * @return	<tt>true</tt> if the machine was restored from a checkpoint.
+     */
+    public static boolean restoredFromCheckpoint() {
+	return checkpointFileName != null;
+    }
+
+    /**
+     * Return the number of bytes of heap allocated so far by Java threads, for
+     * measuring how much garbage kernel code makes. On JDK 21 and later, this
+     * is the JVM's own total, which counts threads that have exited. On older
+     * JDKs, it is the sum over live threads plus what TCB host threads had
+     * allocated when they exited; other threads that exit are missed.
+     *
+     * @return	the number of bytes allocated, or -1 if the JVM can't tell.
+     */
+    public static long allocatedBytes() {
+	final long[] result = { -1 };
+
+	privilege.doPrivileged(new Runnable() {
+		public void run() {
+		    com.sun.management.ThreadMXBean bean = allocationBean();
+		    if (bean == null)
+			return;
+
+		    if (totalAllocatedBytes != null) {
+			try {
+			    result[0] = (long)
+				totalAllocatedBytes.invokeExact(bean);
+			    return;
+			}
+			catch (Throwable e) {
+			    Lib.assertNotReached();
+			}
+		    }
+
+		    long total = exitedThreadBytes.get();
+		    for (long bytes :
+			     bean.getThreadAllocatedBytes(bean.getAllThreadIds()))
+			if (bytes > 0)
+			    total += bytes;
+		    result[0] = total;
+		}
+	    });
+
+	return result[0];
+    }
+
+    /**
+     * Called by a TCB host thread just before it exits, so that
+     * <tt>allocatedBytes()</tt> still counts what it allocated. Does nothing
+     * if the JVM keeps that total itself. The caller is no longer a Nachos
+     * thread, so it needs no privilege.
+     */
+    static void hostThreadExiting() {
+	if (totalAllocatedBytes != null)
+	    return;
+
+	com.sun.management.ThreadMXBean bean = allocationBean();
+	if (bean == null)
+	    return;
+
+	long bytes = bean.getThreadAllocatedBytes(Thread.currentThread().getId());
+	if (bytes > 0)
+	    exitedThreadBytes.addAndGet(bytes);
+    }
+
+    /**
+     * Return the thread MX bean if it can report heap allocation, or
+     * <tt>null</tt>.
+     */
+    private static com.sun.management.ThreadMXBean allocationBean() {
+	if (!(ManagementFactory.getThreadMXBean() instanceof
+	      com.sun.management.ThreadMXBean))
+	    return null;
+
+	com.sun.management.ThreadMXBean bean =
+	    (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+	if (!bean.isThreadAllocatedMemorySupported() ||
+	    !bean.isThreadAllocatedMemoryEnabled())
+	    return null;
+
+	return bean;
+    }
+
     /**
      * Return an array containing all command line arguments.
      *
@@ -134,6 +253,10 @@ public final class Machine {
 			Lib.assertNotReached("bad value for -m switch");
 		    }
 		}
+		else if (arg.equals("-r")) {
+		    Lib.assertTrue(i < args.length, "switch without argument");
+		    checkpointFileName = args[i++];
+		}
 		else if (arg.equals("-s")) {
 		    Lib.assertTrue(i < args.length, "switch without argument");
 		    try {
@@ -322,7 +445,7 @@ public final class Machine {
      * @return	the MIPS processor, or <tt>null</tt> if it is not present.
      */     
     public static Processor processor() { return processor; }
-    
+
     /**
      * Return the hardware console.
      *
@@ -415,6 +538,27 @@ public final class Machine {
 
     private static File baseDirectory, nachosDirectory, testDirectory;
     private static String configFileName = "nachos.conf";
+    private static String checkpointFileName = null;
+
+    /**
+     * <tt>ThreadMXBean.getTotalThreadAllocatedBytes()</tt>, or <tt>null</tt>
+     * before JDK 21. Looked up before the security manager is installed.
+     */
+    private static MethodHandle totalAllocatedBytes = null;
+    /** Bytes allocated by TCB host threads that have exited. */
+    private static AtomicLong exitedThreadBytes = new AtomicLong();
+
+    static {
+	try {
+	    totalAllocatedBytes = MethodHandles.publicLookup().findVirtual(
+		com.sun.management.ThreadMXBean.class,
+		"getTotalThreadAllocatedBytes",
+		MethodType.methodType(long.class));
+	}
+	catch (ReflectiveOperationException e) {
+	    // before JDK 21; allocatedBytes() adds up the threads instead
+	}
+    }
 
     private static final String help =
 	"\n" +
@@ -429,6 +573,9 @@ public final class Machine {
 	"\t-m <pages>\n" +
 	"\t\tSpecify how many physical pages of memory to simulate.\n" +
 	"\n" +
+	"\t-r <checkpoint file>\n" +
+	"\t\tRestore the hardware state saved by Machine.checkpoint().\n" +
+	"\n" +
 	"\t-s <seed>\n" +
 	"\t\tSpecify the seed for the random number generator (seed is a\n" +
 	"\t\tlong).\n" +
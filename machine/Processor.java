@@ -4,6 +4,12 @@ package nachos.machine;
 
 import nachos.security.*;
 
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
 /**
  * The <tt>Processor</tt> class simulates a MIPS processor that supports a
  * subset of the R3000 instruction set. Specifically, the processor lacks all
@@ -45,18 +51,212 @@ public final class Processor {
 	for (int i=0; i<numUserRegisters; i++)
 	    registers[i] = 0;
 
-	mainMemory = new byte[pageSize * numPhysPages];
+	String memory = Config.getString("Processor.memory", "heap");
+	Lib.assertTrue(memory.equals("heap") || memory.equals("direct"),
+		       "bad value for Processor.memory");
+	Lib.assertTrue(numPhysPages > 0 &&
+		       numPhysPages <= Integer.MAX_VALUE / pageSize,
+		       "bad number of physical pages");
+
+	if (memory.equals("direct"))
+	    directMemory = ByteBuffer.allocateDirect(pageSize * numPhysPages);
+	else
+	    mainMemory = new byte[pageSize * numPhysPages];
+
+	if (Config.getBoolean("Processor.profile", false))
+	    profiler = new Profiler(privilege, Mips.operationNames);
+
+	String traceFile = Config.getString("Processor.trace", null);
+	if (traceFile != null)
+	    recorder = new TraceWriter(privilege, traceFile);
+
+	decodeCache = new DecodedInstruction[numPhysPages][];
+
+	// "jit" is accepted as another name for the block engine
+	String engine = Config.getString("Processor.engine", "interpreter");
+	Lib.assertTrue(engine.equals("interpreter") || engine.equals("blocks") ||
+		       engine.equals("jit"), "bad value for Processor.engine");
+
+	// blocks skip the per-instruction fetch, so they can't be traced
+	usingBlocks = !engine.equals("interpreter") && recorder == null &&
+	    !Lib.test(dbgProcessor) && !Lib.test(dbgDisassemble) &&
+	    !Lib.test(dbgFullDisassemble);
+
+	if (usingBlocks)
+	    blockCache = new Block[numPhysPages][];
+
+	// fused pairs are neither traced, profiled nor recorded one by one
+	usingFusion = Config.getBoolean("Processor.fuseInstructions", true) &&
+	    profiler == null && recorder == null && !Lib.test(dbgProcessor) &&
+	    !Lib.test(dbgDisassemble) && !Lib.test(dbgFullDisassemble);
 
 	if (usingTLB) {
+	    tlbSize = Config.getInteger("Processor.tlbSize", 4);
+	    tlbAssociativity =
+		Config.getInteger("Processor.tlbAssociativity", tlbSize);
+
+	    Lib.assertTrue(tlbSize > 0 && tlbAssociativity > 0 &&
+			   tlbSize % tlbAssociativity == 0,
+			   "bad TLB size or associativity");
+	    
+	    tlbSets = tlbSize / tlbAssociativity;
+	    Lib.assertTrue((tlbSets & (tlbSets-1)) == 0,
+			   "number of TLB sets must be a power of 2");
+
 	    translations = new TranslationEntry[tlbSize];
 	    for (int i=0; i<tlbSize; i++)
 		translations[i] = new TranslationEntry();
+
+	    if (tlbSets == 1) {
+		int numBuckets = 1;
+		while (numBuckets < tlbSize)
+		    numBuckets *= 2;
+
+		tlbBuckets = new int[numBuckets];
+		Arrays.fill(tlbBuckets, -1);
+		tlbChain = new int[tlbSize];
+	    }
 	}
 	else {
 	    translations = null;
 	}
     }
 
+    /**
+     * Return the instruction profiler.
+     *
+     * @return	the profiler, or <tt>null</tt> if <tt>Processor.profile</tt>
+     *		is not set.
+     */
+    Profiler getProfiler() {
+	return profiler;
+    }
+
+    /**
+     * Return the number of bytes <tt>saveState()</tt> will write.
+     *
+     * @return	the size of this processor's saved state.
+     */
+    int stateSize() {
+	int numTranslations = (translations == null) ? 0 : translations.length;
+	
+	return 4*numUserRegisters + 4*3 + 4 + 9*numTranslations;
+    }
+
+    /**
+     * Save the registers, the delayed load in progress, and the TLB or page
+     * table of this processor, for a checkpoint.
+     *
+     * @param	buf	the buffer to save to.
+     */
+    void saveState(ByteBuffer buf) {
+	settleTicks();
+
+	for (int i=0; i<numUserRegisters; i++)
+	    buf.putInt(registers[i]);
+
+	buf.putInt(loadTarget);
+	buf.putInt(loadMask);
+	buf.putInt(loadValue);
+
+	if (translations == null) {
+	    buf.putInt(-1);
+	    return;
+	}
+
+	buf.putInt(translations.length);
+	for (int i=0; i<translations.length; i++) {
+	    TranslationEntry entry = translations[i];
+	    if (entry == null)
+		entry = new TranslationEntry();
+
+	    buf.putInt(entry.vpn);
+	    buf.putInt(entry.ppn);
+	    buf.put((byte) ((entry.valid ? 1 : 0) | (entry.readOnly ? 2 : 0) |
+			    (entry.used ? 4 : 0) | (entry.dirty ? 8 : 0)));
+	}
+    }
+
+    /**
+     * Restore state saved by <tt>saveState()</tt>. In page table mode this
+     * installs a new page table, which the kernel can get with
+     * <tt>getPageTable()</tt>.
+     *
+     * @param	buf	the buffer to restore from.
+     */
+    void restoreState(ByteBuffer buf) {
+	for (int i=0; i<numUserRegisters; i++)
+	    registers[i] = buf.getInt();
+
+	loadTarget = buf.getInt();
+	loadMask = buf.getInt();
+	loadValue = buf.getInt();
+
+	int numTranslations = buf.getInt();
+	if (numTranslations == -1) {
+	    Lib.assertTrue(!usingTLB);
+	    translations = null;
+	    return;
+	}
+
+	Lib.assertTrue(!usingTLB || numTranslations == tlbSize,
+		       "checkpoint has a different TLB size");
+
+	TranslationEntry[] restored = new TranslationEntry[numTranslations];
+	for (int i=0; i<numTranslations; i++) {
+	    int vpn = buf.getInt();
+	    int ppn = buf.getInt();
+	    int bits = buf.get();
+	    
+	    restored[i] = new TranslationEntry(vpn, ppn, (bits&1) != 0,
+					       (bits&2) != 0, (bits&4) != 0,
+					       (bits&8) != 0);
+	}
+
+	if (usingTLB) {
+	    for (int i=0; i<numTranslations; i++)
+		writeTLBEntry(i, restored[i]);
+	}
+	else {
+	    translations = restored;
+	}
+
+	quietTicks = 0;
+	blockEpoch++;
+    }
+
+    /**
+     * Save all of physical memory, for a checkpoint.
+     *
+     * @param	buf	the buffer to save to.
+     */
+    void saveMemory(ByteBuffer buf) {
+	if (mainMemory != null)
+	    buf.put(mainMemory);
+	else
+	    buf.put(directMemory.duplicate().clear());
+    }
+
+    /**
+     * Restore physical memory saved by <tt>saveMemory()</tt>, discarding
+     * pre-decoded instructions.
+     *
+     * @param	buf	the buffer to restore from.
+     */
+    void restoreMemory(ByteBuffer buf) {
+	if (mainMemory != null) {
+	    buf.get(mainMemory);
+	}
+	else {
+	    ByteBuffer saved = buf.slice();
+	    saved.limit(directMemory.capacity());
+	    directMemory.duplicate().clear().put(saved);
+	    buf.position(buf.position() + directMemory.capacity());
+	}
+
+	invalidateDecodeCache();
+    }
+
     /**
      * Set the exception handler, called whenever a user exception occurs.
      *
@@ -85,23 +285,111 @@ public final class Processor {
      * Start executing instructions at the current PC. Never returns.
      */
     public void run() {
-	Lib.debug(dbgProcessor, "starting program in current thread");
-
 	registers[regNextPC] = registers[regPC] + 4;
 
+	resume();
+    }
+
+    /**
+     * Continue executing instructions at the current PC, with the next PC
+     * taken from the <tt>regNextPC</tt> register rather than set to the
+     * following instruction, so that a program stopped in a branch delay slot
+     * still takes the branch. Used to resume a program from a checkpoint.
+     * Never returns.
+     */
+    public void resume() {
+	Lib.debug(dbgProcessor, "starting program in current thread");
+
 	Machine.autoGrader().runProcessor(privilege);
 
-	Instruction inst = new Instruction();
+	// the debug flags cannot change once the machine is running, so pick
+	// the traced or untraced instruction once
+	Instruction inst;
+	if (Lib.test(dbgProcessor) || Lib.test(dbgDisassemble) ||
+	    Lib.test(dbgFullDisassemble))
+	    inst = new TracedInstruction();
+	else
+	    inst = new Instruction();
 	
 	while (true) {
 	    try {
-		inst.run();
+		if (usingBlocks)
+		    runBlock(inst);
+		else if (recorder != null)
+		    runRecorded(inst);
+		else
+		    inst.run();
 	    }
 	    catch (MipsException e) {
 		e.handle();
 	    }
 
-	    privilege.interrupt.tick(false);
+	    tick();
+	}
+    }
+
+    /**
+     * Execute one instruction and add it to the trace, along with the
+     * exception it caused, if any.
+     *
+     * @param	inst	the instruction to execute with.
+     * @exception	MipsException	if the instruction caused an exception.
+     */
+    private void runRecorded(Instruction inst) throws MipsException {
+	int pc = registers[regPC];
+
+	// neither is set if the fetch fails
+	inst.value = 0;
+	inst.size = 0;
+
+	try {
+	    inst.run();
+	}
+	catch (MipsException e) {
+	    recorder.record(pc, inst.value,
+			    e.hasBadVAddr ? e.badVAddr : 0, e.cause);
+	    throw e;
+	}
+
+	recorder.record(pc, inst.value,
+			inst.size != 0 ? inst.addr : 0, -1);
+    }
+
+    /**
+     * Advance the simulated time by one user instruction. Ticks that cannot
+     * cause an interrupt are only counted here, and added to the statistics
+     * in bulk by <tt>settleTicks()</tt>; the tick on which the next pending
+     * interrupt becomes due goes through the interrupt controller as usual.
+     */
+    private void tick() {
+	if (quietTicks > 0) {
+	    quietTicks--;
+	    batchedTicks++;
+	    return;
+	}
+
+	settleTicks();
+	privilege.interrupt.tick(false);
+
+	// interrupt handlers may have changed the pending interrupts
+	long ticksUntilDue =
+	    privilege.interrupt.nextInterruptTime() - privilege.stats.totalTicks;
+
+	// number of whole user ticks that end strictly before the deadline
+	long quiet = (ticksUntilDue + Stats.UserTick - 1) / Stats.UserTick - 1;
+	quietTicks = (int) Math.max(0, Math.min(quiet, Integer.MAX_VALUE));
+    }
+
+    /**
+     * Add the ticks batched by <tt>tick()</tt> to the statistics. Must be
+     * called before any kernel code, which may read the clock, gets to run,
+     * and before a checkpoint saves the statistics.
+     */
+    void settleTicks() {
+	if (batchedTicks > 0) {
+	    privilege.stats.userTicks += (long) batchedTicks * Stats.UserTick;
+	    privilege.stats.totalTicks += (long) batchedTicks * Stats.UserTick;
+	    batchedTicks = 0;
 	}
     }
 
@@ -188,6 +476,23 @@ public final class Processor {
 	return tlbSize;
     }
 
+    /**
+     * Return the associativity of this processor's TLB, set by
+     * <tt>Processor.tlbAssociativity</tt>. Unless this is equal to
+     * <tt>getTLBSize()</tt> (the default, a fully associative TLB), the TLB
+     * is split into <tt>getTLBSize()/getTLBAssociativity()</tt> sets, and a
+     * valid entry for virtual page <i>vpn</i> must be written to one of the
+     * indices in set <tt>vpn % numSets</tt>, i.e. to an index <i>i</i> such
+     * that <tt>i / getTLBAssociativity() == vpn % numSets</tt>.
+     *
+     * @return	the number of entries in each TLB set.
+     */
+    public int getTLBAssociativity() {
+	Lib.assertTrue(usingTLB);
+
+	return tlbAssociativity;
+    }
+
     /**
      * Returns the specified TLB entry.
      *
@@ -205,8 +510,10 @@ public final class Processor {
      * Fill the specified TLB entry.
      *
      * <p>
-     * The TLB is fully associative, so the location of an entry within the TLB
-     * does not affect anything.
+     * By default the TLB is fully associative, so the location of an entry
+     * within the TLB does not affect anything. If the TLB is set associative,
+     * a valid entry must be written to its set (see
+     * <tt>getTLBAssociativity()</tt>).
      *
      * @param	number	the index into the TLB.
      * @param	entry	the new contents of the TLB entry.
@@ -214,8 +521,89 @@ public final class Processor {
     public void writeTLBEntry(int number, TranslationEntry entry) {
 	Lib.assertTrue(usingTLB);
 	Lib.assertTrue(number >= 0 && number < tlbSize);
+	Lib.assertTrue(!entry.valid || tlbSets == 1 ||
+		       (entry.vpn & (tlbSets-1)) == number / tlbAssociativity,
+		       "TLB entry written to the wrong set");
+
+	if (tlbSets == 1 && translations[number].valid)
+	    unchainTLBEntry(number);
 
 	translations[number] = new TranslationEntry(entry);
+
+	if (tlbSets == 1 && entry.valid)
+	    chainTLBEntry(number);
+    }
+
+    /**
+     * Add a valid TLB entry to the hash chain for its virtual page number,
+     * keeping the chain in index order. The linear TLB search this replaces
+     * found the lowest numbered matching entry, so duplicates still resolve
+     * the same way.
+     *
+     * @param	number	the index of the entry.
+     */
+    private void chainTLBEntry(int number) {
+	int bucket = translations[number].vpn & (tlbBuckets.length-1);
+
+	int prev = -1, next = tlbBuckets[bucket];
+	while (next != -1 && next < number) {
+	    prev = next;
+	    next = tlbChain[next];
+	}
+
+	tlbChain[number] = next;
+	if (prev == -1)
+	    tlbBuckets[bucket] = number;
+	else
+	    tlbChain[prev] = number;
+    }
+
+    /**
+     * Remove a valid TLB entry from the hash chain for its virtual page
+     * number.
+     *
+     * @param	number	the index of the entry.
+     */
+    private void unchainTLBEntry(int number) {
+	int bucket = translations[number].vpn & (tlbBuckets.length-1);
+
+	if (tlbBuckets[bucket] == number) {
+	    tlbBuckets[bucket] = tlbChain[number];
+	    return;
+	}
+
+	int prev = tlbBuckets[bucket];
+	while (tlbChain[prev] != number)
+	    prev = tlbChain[prev];
+
+	tlbChain[prev] = tlbChain[number];
+    }
+
+    /**
+     * Find the valid TLB entry for a virtual page.
+     *
+     * @param	vpn	the virtual page number.
+     * @return	the matching entry, or <tt>null</tt> if there is none.
+     */
+    private TranslationEntry lookupTLB(int vpn) {
+	if (tlbSets == 1) {
+	    // every entry on the chain is valid
+	    for (int i=tlbBuckets[vpn & (tlbBuckets.length-1)]; i != -1;
+		 i=tlbChain[i]) {
+		if (translations[i].vpn == vpn)
+		    return translations[i];
+	    }
+	}
+	else {
+	    int first = (vpn & (tlbSets-1)) * tlbAssociativity;
+	    
+	    for (int i=first; i<first+tlbAssociativity; i++) {
+		if (translations[i].valid && translations[i].vpn == vpn)
+		    return translations[i];
+	    }
+	}
+
+	return null;
     }
 
     /**
@@ -232,12 +620,139 @@ public final class Processor {
      * Return a reference to the physical memory array. The size of this array
      * is <tt>pageSize * getNumPhysPages()</tt>.
      *
+     * <p>
+     * Since the caller may modify any part of the array, this discards all
+     * pre-decoded instructions. Do not hold on to the array while user code
+     * runs; call <tt>getMemory()</tt> again before each modification.
+     *
+     * <p>
+     * There is no such array if <tt>Processor.memory</tt> is <tt>direct</tt>,
+     * so prefer <tt>readMemory()</tt> and <tt>writeMemory()</tt>, which work
+     * with either kind of memory.
+     *
      * @return	the main memory array.
      */
     public byte[] getMemory() {
+	Lib.assertTrue(mainMemory != null,
+		       "physical memory is direct; use readMemory()/writeMemory()");
+	
+	invalidateDecodeCache();
 	return mainMemory;
     }
 
+    /**
+     * Copy bytes out of physical memory.
+     *
+     * @param	paddr	the first physical address to read.
+     * @param	data	the array where the data will be stored.
+     * @param	offset	the first byte to write in the array.
+     * @param	length	the number of bytes to copy.
+     */
+    public void readMemory(int paddr, byte[] data, int offset, int length) {
+	Lib.assertTrue(offset >= 0 && length >= 0 &&
+		       offset+length <= data.length);
+	Lib.assertTrue(paddr >= 0 && paddr <= pageSize*numPhysPages - length);
+
+	if (mainMemory != null)
+	    System.arraycopy(mainMemory, paddr, data, offset, length);
+	else
+	    directMemory.duplicate().position(paddr).get(data, offset, length);
+    }
+
+    /**
+     * Copy bytes into physical memory, discarding any pre-decoded
+     * instructions on the pages written.
+     *
+     * @param	paddr	the first physical address to write.
+     * @param	data	the array containing the data to copy.
+     * @param	offset	the first byte to copy from the array.
+     * @param	length	the number of bytes to copy.
+     */
+    public void writeMemory(int paddr, byte[] data, int offset, int length) {
+	Lib.assertTrue(offset >= 0 && length >= 0 &&
+		       offset+length <= data.length);
+	Lib.assertTrue(paddr >= 0 && paddr <= pageSize*numPhysPages - length);
+
+	if (mainMemory != null)
+	    System.arraycopy(data, offset, mainMemory, paddr, length);
+	else
+	    directMemory.duplicate().position(paddr).put(data, offset, length);
+
+	for (int i=0; i<length; i+=pageSize)
+	    invalidateDecodedPage((paddr+i) / pageSize);
+	if (length > 0)
+	    invalidateDecodedPage((paddr+length-1) / pageSize);
+    }
+
+    /**
+     * Read <i>size</i> (1, 2, or 4) bytes of physical memory. The address must
+     * be aligned. As with <tt>Lib.bytesToInt()</tt>, bytes and halfwords are
+     * sign-extended.
+     *
+     * @param	paddr	the physical address to read from.
+     * @param	size	the number of bytes to read.
+     * @return	the value read.
+     */
+    private int readPhys(int paddr, int size) {
+	if (mainMemory != null) {
+	    switch (size) {
+	    case 1:
+		return mainMemory[paddr];
+	    case 2:
+		return (short) shortArrayView.get(mainMemory, paddr);
+	    default:
+		return (int) intArrayView.get(mainMemory, paddr);
+	    }
+	}
+	else {
+	    switch (size) {
+	    case 1:
+		return directMemory.get(paddr);
+	    case 2:
+		return (short) shortBufferView.get(directMemory, paddr);
+	    default:
+		return (int) intBufferView.get(directMemory, paddr);
+	    }
+	}
+    }
+
+    /**
+     * Write <i>size</i> (1, 2, or 4) bytes of physical memory. The address
+     * must be aligned. Does not touch the decode cache.
+     *
+     * @param	paddr	the physical address to write to.
+     * @param	size	the number of bytes to write.
+     * @param	value	the value to store.
+     */
+    private void writePhys(int paddr, int size, int value) {
+	if (mainMemory != null) {
+	    switch (size) {
+	    case 1:
+		mainMemory[paddr] = (byte) value;
+		break;
+	    case 2:
+		shortArrayView.set(mainMemory, paddr, (short) value);
+		break;
+	    default:
+		intArrayView.set(mainMemory, paddr, value);
+		break;
+	    }
+	}
+	else {
+	    switch (size) {
+	    case 1:
+		directMemory.put(paddr, (byte) value);
+		break;
+	    case 2:
+		shortBufferView.set(directMemory, paddr, (short) value);
+		break;
+	    default:
+		intBufferView.set(directMemory, paddr, value);
+		break;
+	    }
+	}
+    }
+
     /**
      * Concatenate a page number and an offset into an address.
      *
@@ -275,10 +790,256 @@ public final class Processor {
 	return (int) (((long) address & 0xFFFFFFFFL) % pageSize);
     }
 
+    /**
+     * Test whether an instruction word is a load or a store.
+     *
+     * @param	instruction	the instruction word.
+     * @return	<tt>true</tt> if the instruction accesses memory.
+     */
+    static boolean isMemoryAccess(int instruction) {
+	return new DecodedInstruction(instruction).size != 0;
+    }
+
+    /**
+     * Disassemble an instruction word, in the same syntax as the
+     * <tt>m</tt> debug flag but without register contents.
+     *
+     * @param	pc		the address of the instruction, used to print
+     *				branch targets.
+     * @param	instruction	the instruction word.
+     * @return	the disassembled instruction.
+     */
+    static String disassemble(int pc, int instruction) {
+	DecodedInstruction decoded = new DecodedInstruction(instruction);
+	if (decoded.operation == Mips.INVALID)
+	    return "invalid 0x" + Lib.toHexString(instruction);
+
+	int imm = decoded.imm;
+	if (Lib.test(Mips.UNSIGNED, decoded.flags))
+	    imm &= 0xFFFF;
+	
+	String name = decoded.name;
+	int spaceIndex = name.indexOf(' ');
+	String args = name.substring(spaceIndex+1);
+
+	StringBuffer buf = new StringBuffer(name.substring(0, spaceIndex));
+	String separator = "\t";
+	
+	for (int i=0; i<args.length(); i++) {
+	    String arg;
+	    
+	    switch (args.charAt(i)) {
+	    case Mips.RS:
+		arg = "$" + decoded.rs;
+		break;
+	    case Mips.RT:
+		arg = "$" + decoded.rt;
+		break;
+	    case Mips.RETURNADDRESS:
+		// an implicit $31 is not shown
+		if (decoded.rd == 31)
+		    continue;
+		arg = "$" + decoded.rd;
+		break;
+	    case Mips.RD:
+		arg = "$" + decoded.rd;
+		break;
+	    case Mips.IMM:
+		arg = "" + imm;
+		break;
+	    case Mips.SHIFTAMOUNT:
+		arg = "" + decoded.sh;
+		break;
+	    case Mips.ADDR:
+		arg = imm + "($" + decoded.rs + ")";
+		break;
+	    case Mips.TARGET:
+		if (decoded.format == Mips.IFMT)
+		    arg = "0x" + Lib.toHexString(pc+4 + (imm<<2));
+		else
+		    arg = "0x" + Lib.toHexString(((pc+4)&0xF0000000) |
+						 (decoded.target<<2));
+		break;
+	    default:
+		Lib.assertNotReached();
+		return null;
+	    }
+
+	    buf.append(separator).append(arg);
+	    separator = ", ";
+	}
+
+	return buf.toString();
+    }
+
     private void finishLoad() {
 	delayedLoad(0, 0, 0);
     }
 
+    /**
+     * Return the pre-decoded form of the instruction stored at the specified
+     * physical address, decoding and caching it if it has not been seen since
+     * its page was last modified.
+     *
+     * @param	paddr	the word-aligned physical address of the instruction.
+     * @return	the decoded instruction.
+     */
+    private DecodedInstruction decodedAt(int paddr) {
+	int ppn = paddr / pageSize;
+	
+	DecodedInstruction[] page = decodeCache[ppn];
+	if (page == null) {
+	    page = new DecodedInstruction[pageSize/4];
+	    decodeCache[ppn] = page;
+	    numDecodedPages++;
+	}
+
+	int index = (paddr % pageSize) / 4;
+	
+	DecodedInstruction decoded = page[index];
+	if (decoded == null) {
+	    decoded = new DecodedInstruction(readPhys(paddr, 4));
+
+	    // only pairs within one page, so that they are invalidated together
+	    if (usingFusion && index+1 < page.length)
+		decoded.fuse(new DecodedInstruction(readPhys(paddr+4, 4)));
+	    
+	    page[index] = decoded;
+	}
+
+	return decoded;
+    }
+
+    /**
+     * Discard the pre-decoded instructions of the specified physical page.
+     * Must be called whenever the contents of the page change.
+     *
+     * @param	ppn	the physical page that was modified.
+     */
+    private void invalidateDecodedPage(int ppn) {
+	if (decodeCache[ppn] != null) {
+	    decodeCache[ppn] = null;
+	    numDecodedPages--;
+
+	    if (usingBlocks) {
+		blockCache[ppn] = null;
+		blockEpoch++;
+	    }
+	}
+    }
+
+    /**
+     * Discard all pre-decoded instructions.
+     */
+    private void invalidateDecodeCache() {
+	if (numDecodedPages > 0) {
+	    Arrays.fill(decodeCache, null);
+	    numDecodedPages = 0;
+
+	    if (usingBlocks) {
+		Arrays.fill(blockCache, null);
+		blockEpoch++;
+	    }
+	}
+    }
+
+    /**
+     * Return the translated basic block that starts at the specified physical
+     * address, translating it if necessary. A block extends up to and
+     * including the delay slot of the first branch, up to the first syscall or
+     * illegal instruction, or up to the end of the page, whichever comes
+     * first.
+     *
+     * @param	paddr	the word-aligned physical address of the block entry.
+     * @return	the basic block.
+     */
+    private Block blockAt(int paddr) {
+	int ppn = paddr / pageSize;
+	int first = (paddr % pageSize) / 4;
+	int numWords = pageSize / 4;
+
+	Block[] blocks = blockCache[ppn];
+	if (blocks == null) {
+	    blocks = new Block[numWords];
+	    blockCache[ppn] = blocks;
+	}
+
+	if (blocks[first] != null)
+	    return blocks[first];
+
+	int last = first;
+	while (last < numWords-1) {
+	    DecodedInstruction decoded = decodedAt(ppn*pageSize + last*4);
+
+	    if (Lib.test(Mips.BRANCH, decoded.flags)) {
+		// include the delay slot
+		last++;
+		break;
+	    }
+
+	    if (decoded.operation == Mips.SYSCALL ||
+		decoded.operation == Mips.UNIMPL ||
+		decoded.operation == Mips.INVALID)
+		break;
+
+	    last++;
+	}
+
+	DecodedInstruction[] code = new DecodedInstruction[last-first+1];
+	for (int i=0; i<code.length; i++)
+	    code[i] = decodedAt(ppn*pageSize + (first+i)*4);
+
+	// decodedAt() may have reset the page, so store the block last
+	blocks = blockCache[ppn];
+	if (blocks == null) {
+	    blocks = new Block[numWords];
+	    blockCache[ppn] = blocks;
+	}
+	
+	blocks[first] = new Block(code);
+	return blocks[first];
+    }
+
+    /**
+     * Execute the basic block at the current PC, ticking the clock after each
+     * instruction but the last. Falls back to executing a single instruction
+     * if the current PC is in a delay slot. Abandons the block as soon as an
+     * interrupt handler runs, or as soon as code pages are modified, since
+     * either may have changed the translation or the code itself; the
+     * instruction following the abandoned part is then fetched normally.
+     *
+     * @param	inst	the instruction to execute with.
+     * @exception	MipsException	if an instruction caused an exception.
+     */
+    private void runBlock(Instruction inst) throws MipsException {
+	int pc = registers[regPC];
+
+	// blocks can only be entered at the start of a sequential run
+	if (registers[regNextPC] != pc+4) {
+	    inst.run();
+	    return;
+	}
+
+	DecodedInstruction[] code = blockAt(translate(pc, 4, false)).code;
+	int epoch = blockEpoch;
+
+	for (int i=0; ; i++) {
+	    inst.run(code[i]);
+
+	    if (i == code.length-1)
+		return;
+
+	    tick();
+
+	    // the block may be stale now, so fetch the next instruction normally
+	    pc += 4;
+	    if (blockEpoch != epoch || registers[regPC] != pc) {
+		inst.run();
+		return;
+	    }
+	}
+    }
+
     /**
      * Translate a virtual address into a physical address, using either a
      * page table or a TLB. Check for alignment, make sure the virtual page is
@@ -286,6 +1047,9 @@ public final class Processor {
      * resulting physical page is valid, and then return the resulting physical
      * address.
      *
+     * <p>
+     * This is the untraced path; see <tt>traceTranslate()</tt>.
+     *
      * @param	vaddr	the virtual address to translate.
      * @param	size	the size of the memory reference (must be 1, 2, or 4).
      * @param	writing	<tt>true</tt> if the memory reference is a write.
@@ -294,15 +1058,9 @@ public final class Processor {
      */
     private int translate(int vaddr, int size, boolean writing)
 	throws MipsException {
-	if (Lib.test(dbgProcessor))
-	    System.out.println("\ttranslate vaddr=0x" + Lib.toHexString(vaddr)
-			       + (writing ? ", write" : ", read..."));
-
 	// check alignment
-	if ((vaddr & (size-1)) != 0) {
-	    Lib.debug(dbgProcessor, "\t\talignment error");
-	    throw new MipsException(exceptionAddressError, vaddr);
-	}
+	if ((vaddr & (size-1)) != 0)
+	    throw fault(exceptionAddressError, vaddr);
 
 	// calculate virtual page number and offset from the virtual address
 	int vpn = pageFromAddress(vaddr);
@@ -316,46 +1074,61 @@ public final class Processor {
 		translations[vpn] == null ||
 		!translations[vpn].valid) {
 		privilege.stats.numPageFaults++;
-		Lib.debug(dbgProcessor, "\t\tpage fault");
-		throw new MipsException(exceptionPageFault, vaddr);
+		throw fault(exceptionPageFault, vaddr);
 	    }
 
 	    entry = translations[vpn];
 	}
-	// else, look through all TLB entries for matching vpn
+	// else, look up the vpn in the TLB
 	else {
-	    for (int i=0; i<tlbSize; i++) {
-		if (translations[i].valid && translations[i].vpn == vpn) {
-		    entry = translations[i];
-		    break;
-		}
-	    }
+	    entry = lookupTLB(vpn);
 	    if (entry == null) {
 		privilege.stats.numTLBMisses++;
-		Lib.debug(dbgProcessor, "\t\tTLB miss");
-		throw new MipsException(exceptionTLBMiss, vaddr);
+		throw fault(exceptionTLBMiss, vaddr);
 	    }
 	}
 
 	// check if trying to write a read-only page
-	if (entry.readOnly && writing) {
-	    Lib.debug(dbgProcessor, "\t\tread-only exception");
-	    throw new MipsException(exceptionReadOnly, vaddr);
-	}
+	if (entry.readOnly && writing)
+	    throw fault(exceptionReadOnly, vaddr);
 
 	// check if physical page number is out of range
 	int ppn = entry.ppn;
-	if (ppn < 0 || ppn >= numPhysPages) {
-	    Lib.debug(dbgProcessor, "\t\tbad ppn");
-	    throw new MipsException(exceptionBusError, vaddr);
-	}
+	if (ppn < 0 || ppn >= numPhysPages)
+	    throw fault(exceptionBusError, vaddr);
 
 	// set used and dirty bits as appropriate
 	entry.used = true;
 	if (writing)
 	    entry.dirty = true;
 
-	int paddr = (ppn*pageSize) + offset;
+	return (ppn*pageSize) + offset;
+    }
+
+    /**
+     * Same as <tt>translate()</tt>, but also traces the translation if the
+     * processor debug flag is set.
+     *
+     * @param	vaddr	the virtual address to translate.
+     * @param	size	the size of the memory reference (must be 1, 2, or 4).
+     * @param	writing	<tt>true</tt> if the memory reference is a write.
+     * @return		the physical address.
+     * @exception	MipsException	if a translation error occurred.
+     */
+    private int traceTranslate(int vaddr, int size, boolean writing)
+	throws MipsException {
+	if (Lib.test(dbgProcessor))
+	    System.out.println("\ttranslate vaddr=0x" + Lib.toHexString(vaddr)
+			       + (writing ? ", write" : ", read..."));
+
+	int paddr;
+	try {
+	    paddr = translate(vaddr, size, writing);
+	}
+	catch (MipsException e) {
+	    Lib.debug(dbgProcessor, "\t\t" + translationErrors[e.cause]);
+	    throw e;
+	}
 
 	if (Lib.test(dbgProcessor))
 	    System.out.println("\t\tpaddr=0x" + Lib.toHexString(paddr));	
@@ -372,14 +1145,28 @@ public final class Processor {
      * @exception	MipsException	if a translation error occurred.
      */
     private int readMem(int vaddr, int size) throws MipsException {
+	Lib.assertTrue(size==1 || size==2 || size==4);
+	
+	return readPhys(translate(vaddr, size, false), size);
+    }
+
+    /**
+     * Same as <tt>readMem()</tt>, but also traces the access if the processor
+     * debug flag is set.
+     *
+     * @param	vaddr	the virtual address to read from.
+     * @param	size	the number of bytes to read (1, 2, or 4).
+     * @return		the value read.
+     * @exception	MipsException	if a translation error occurred.
+     */
+    private int traceReadMem(int vaddr, int size) throws MipsException {
 	if (Lib.test(dbgProcessor))
 	    System.out.println("\treadMem vaddr=0x" + Lib.toHexString(vaddr)
 			       + ", size=" + size);
 
 	Lib.assertTrue(size==1 || size==2 || size==4);
 	
-	int value = Lib.bytesToInt(mainMemory, translate(vaddr, size, false),
-				   size);
+	int value = readPhys(traceTranslate(vaddr, size, false), size);
 
 	if (Lib.test(dbgProcessor))
 	    System.out.println("\t\tvalue read=0x" +
@@ -398,6 +1185,26 @@ public final class Processor {
      * @exception	MipsException	if a translation error occurred.
      */
     private void writeMem(int vaddr, int size, int value)
+	throws MipsException {
+	Lib.assertTrue(size==1 || size==2 || size==4);
+
+	int paddr = translate(vaddr, size, true);
+	
+	writePhys(paddr, size, value);
+
+	invalidateDecodedPage(paddr / pageSize);
+    }
+
+    /**
+     * Same as <tt>writeMem()</tt>, but also traces the access if the processor
+     * debug flag is set.
+     *
+     * @param	vaddr	the virtual address to write to.
+     * @param	size	the number of bytes to write (1, 2, or 4).
+     * @param	value	the value to store.
+     * @exception	MipsException	if a translation error occurred.
+     */
+    private void traceWriteMem(int vaddr, int size, int value)
 	throws MipsException {
 	if (Lib.test(dbgProcessor))
 	    System.out.println("\twriteMem vaddr=0x" + Lib.toHexString(vaddr)
@@ -405,9 +1212,12 @@ public final class Processor {
 			       + Lib.toHexString(value, size*2));
 
 	Lib.assertTrue(size==1 || size==2 || size==4);
+
+	int paddr = traceTranslate(vaddr, size, true);
 	
-	Lib.bytesFromInt(mainMemory, translate(vaddr, size, true), size,
-			 value);
+	writePhys(paddr, size, value);
+
+	invalidateDecodedPage(paddr / pageSize);
     }
 
     /**
@@ -480,6 +1290,18 @@ public final class Processor {
     /** Caused by an attempt to execute an illegal instruction. */
     public static final int exceptionIllegalInstruction = 7;
 
+    /** What the processor trace says about each translation error. */
+    private static final String translationErrors[] = {
+	null,
+	"page fault",
+	"TLB miss",
+	"read-only exception",
+	"bad ppn",
+	"alignment error",
+	null,
+	null
+    };
+
     /** The names of the CPU exceptions. */
     public static final String exceptionNames[] = {
 	"syscall      ",
@@ -541,6 +1363,17 @@ public final class Processor {
     private boolean usingTLB;
     /** Number of TLB entries. */
     private int tlbSize = 4;
+    /** Number of TLB entries in each set. */
+    private int tlbAssociativity;
+    /** Number of TLB sets; 1 if the TLB is fully associative. */
+    private int tlbSets;
+    /**
+     * For a fully associative TLB, the lowest index of a valid entry in each
+     * hash bucket of virtual page numbers, or -1 if the bucket is empty.
+     */
+    private int[] tlbBuckets;
+    /** The index of the next valid entry in the same hash bucket, or -1. */
+    private int[] tlbChain;
     /**
      * Either an associative or direct-mapped set of translation entries,
      * depending on whether there is a TLB.
@@ -553,8 +1386,41 @@ public final class Processor {
     public static final int maxPages = (int) (0x100000000L / pageSize);
     /** Number of physical pages in memory. */
     private int numPhysPages;
-    /** Main memory for user programs. */
+    /** The instruction profiler, or <tt>null</tt> if not profiling. */
+    private Profiler profiler = null;
+    /** The trace recorder, or <tt>null</tt> if not recording a trace. */
+    private TraceWriter recorder = null;
+    /** Main memory for user programs, unless it is direct. */
     private byte[] mainMemory;
+    /**
+     * Main memory for user programs, if <tt>Processor.memory</tt> is
+     * <tt>direct</tt>. Exactly one of this and <tt>mainMemory</tt> is
+     * non-null.
+     */
+    private ByteBuffer directMemory = null;
+
+    /** Little-endian views of physical memory, for aligned accesses. */
+    private static final VarHandle intArrayView =
+	MethodHandles.byteArrayViewVarHandle(int[].class,
+					     ByteOrder.LITTLE_ENDIAN);
+    private static final VarHandle shortArrayView =
+	MethodHandles.byteArrayViewVarHandle(short[].class,
+					     ByteOrder.LITTLE_ENDIAN);
+    private static final VarHandle intBufferView =
+	MethodHandles.byteBufferViewVarHandle(int[].class,
+					      ByteOrder.LITTLE_ENDIAN);
+    private static final VarHandle shortBufferView =
+	MethodHandles.byteBufferViewVarHandle(short[].class,
+					      ByteOrder.LITTLE_ENDIAN);
+    /**
+     * Pre-decoded instructions, indexed by physical page number and then by
+     * word within the page. A page's entry is <tt>null</tt> until an
+     * instruction is fetched from it, and is reset to <tt>null</tt> whenever
+     * the page is written.
+     */
+    private DecodedInstruction[][] decodeCache;
+    /** The number of non-null pages in <tt>decodeCache</tt>. */
+    private int numDecodedPages = 0;
 
     /** The kernel exception handler, called on every user exception. */
     private Runnable exceptionHandler = null;
@@ -563,27 +1429,86 @@ public final class Processor {
     private static final char dbgDisassemble = 'm';
     private static final char dbgFullDisassemble = 'M';
 
+    /**
+     * The number of upcoming user ticks that are known not to make any
+     * interrupt due, and so can be counted without consulting the interrupt
+     * controller.
+     */
+    private int quietTicks = 0;
+    /** The number of user ticks counted but not yet added to the stats. */
+    private int batchedTicks = 0;
+
+    /** <tt>true</tt> if running basic blocks instead of single instructions. */
+    private boolean usingBlocks;
+    /** <tt>true</tt> if common instruction pairs are run as one. */
+    private boolean usingFusion;
+    /**
+     * Translated basic blocks, indexed like <tt>decodeCache</tt> by the
+     * physical address of their first instruction. Only used when
+     * <tt>usingBlocks</tt> is set.
+     */
+    private Block[][] blockCache;
+    /**
+     * Incremented whenever a block that is being run might have become
+     * stale, i.e. whenever an interrupt handler runs or cached code is
+     * discarded.
+     */
+    private int blockEpoch = 0;
+
+    /** The exception object thrown by <tt>fault()</tt>. */
+    private MipsException mipsException = new MipsException();
+
     private class ProcessorPrivilege implements Privilege.ProcessorPrivilege {
 	public void flushPipe() {
 	    finishLoad();
+	    blockEpoch++;
 	}
     }
 
-    private class MipsException extends Exception {
-	public MipsException(int cause) {
-	    Lib.assertTrue(cause >= 0 && cause < exceptionNames.length);
+    /**
+     * Return the processor's exception object, set up to signal the specified
+     * exception. The same object is reused for every exception, so signalling
+     * one does not allocate.
+     *
+     * @param	cause	the exception to signal.
+     * @return	the exception object to throw.
+     */
+    private MipsException fault(int cause) {
+	return mipsException.set(cause, false, 0);
+    }
 
-	    this.cause = cause;
+    /**
+     * Same as <tt>fault(int)</tt>, but also sets the bad virtual address.
+     *
+     * @param	cause	the exception to signal.
+     * @param	badVAddr	the virtual address that caused the exception.
+     * @return	the exception object to throw.
+     */
+    private MipsException fault(int cause, int badVAddr) {
+	return mipsException.set(cause, true, badVAddr);
+    }
+
+    private class MipsException extends Exception {
+	public MipsException() {
+	    // no message, no cause, and no stack trace to fill in
+	    super(null, null, false, false);
 	}
 
-	public MipsException(int cause, int badVAddr) {
-	    this(cause);
+	private MipsException set(int cause, boolean hasBadVAddr,
+				  int badVAddr) {
+	    Lib.assertTrue(cause >= 0 && cause < exceptionNames.length);
 
-	    hasBadVAddr = true;
+	    this.cause = cause;
+	    this.hasBadVAddr = hasBadVAddr;
 	    this.badVAddr = badVAddr;
+	    return this;
 	}
 
 	public void handle() {
+	    // the kernel may read the clock or schedule interrupts
+	    settleTicks();
+	    quietTicks = 0;
+	    
 	    writeRegister(regCause, cause);
 
 	    if (hasBadVAddr)
@@ -601,6 +1526,10 @@ public final class Processor {
 		return;
 	    
 	    exceptionHandler.run();
+
+	    // other threads may have run user code and changed the schedule
+	    settleTicks();
+	    quietTicks = 0;
 	}
 
 	private boolean hasBadVAddr = false;
@@ -611,78 +1540,155 @@ public final class Processor {
 	public void run() throws MipsException {
 	    // hopefully this looks familiar to 152 students?
 	    fetch();
+
+	    // a pair can only run as one if the tick between its halves is
+	    // known not to cause an interrupt
+	    if (decoded.fusion != DecodedInstruction.fuseNone &&
+		quietTicks > 0 && registers[regNextPC] == registers[regPC]+4) {
+		runFused();
+		return;
+	    }
+	    
 	    decode();
 	    execute();
 	    writeBack();
 	}	
 
-	private boolean test(int flag) {
-	    return Lib.test(flag, flags);
+	public void run(DecodedInstruction decoded) throws MipsException {
+	    // already fetched by the caller
+	    this.decoded = decoded;
+	    value = decoded.value;
+	    
+	    decode();
+	    execute();
+	    writeBack();
 	}
 
-	private void fetch() throws MipsException {
-	    if ((Lib.test(dbgDisassemble) && !Lib.test(dbgProcessor)) ||
-		Lib.test(dbgFullDisassemble))
-		System.out.print("PC=0x" + Lib.toHexString(registers[regPC])
-				 + "\t");
+	/**
+	 * Execute the fused pair starting with the instruction just fetched,
+	 * with the same effect as executing its two halves one at a time. The
+	 * first half is ticked here; the caller ticks the second, as for any
+	 * other instruction. Only the second half of a stack adjustment can
+	 * cause an exception, and by then the first half has completed, so the
+	 * exception is taken at the second half like it would be otherwise.
+	 */
+	void runFused() throws MipsException {
+	    DecodedInstruction first = decoded, second = decoded.fusedWith;
+	    int pc = registers[regPC];
+	    long src1, src2;
+	    boolean equal;
+	    
+	    switch (first.fusion) {
+	    case DecodedInstruction.fuseConstant:
+		// lui; ori or addiu
+		finishLoad();
+		registers[first.rt] = first.imm << 16;
+		tick();
+		
+		if (second.operation == Mips.OR)
+		    registers[second.rt] =
+			registers[second.rs] | (second.imm & 0xFFFF);
+		else
+		    registers[second.rt] = registers[second.rs] + second.imm;
+		break;
+		
+	    case DecodedInstruction.fuseCompareBranch:
+		// slt, slti, sltu or sltiu; beq or bne on the result
+		src1 = registers[first.rs];
+		if (Lib.test(Mips.SRC2IMM, first.flags))
+		    src2 = first.imm;
+		else
+		    src2 = registers[first.rt];
 
-	    value = readMem(registers[regPC], 4);
-	}
-	
-	private void decode() {
-	    op = Lib.extract(value, 26, 6);
-	    rs = Lib.extract(value, 21, 5);
-	    rt = Lib.extract(value, 16, 5);
-	    rd = Lib.extract(value, 11, 5);
-	    sh = Lib.extract(value, 6, 5);
-	    func = Lib.extract(value, 0, 6);
-	    target = Lib.extract(value, 0, 26);
-	    imm = Lib.extend(value, 0, 16);
+		if (Lib.test(Mips.UNSIGNED, first.flags)) {
+		    if (Lib.test(Mips.SRC2IMM, first.flags))
+			src2 &= 0xFFFF;
+		    src1 &= 0xFFFFFFFFL;
+		    src2 &= 0xFFFFFFFFL;
+		}
 
-	    Mips info;
-	    switch (op) {
-	    case 0:
-		info = Mips.specialtable[func];
+		finishLoad();
+		registers[first.dstReg] = (src1<src2) ? 1 : 0;
+		tick();
+
+		equal = (registers[second.rs] == registers[second.rt]);
+		registers[regPC] = pc+8;
+		if (equal == (second.operation == Mips.BEQ))
+		    registers[regNextPC] = pc+8 + (second.imm<<2);
+		else
+		    registers[regNextPC] = pc+12;
+		return;
+
+	    case DecodedInstruction.fuseLoadNop:
+		// load; nop, which completes the load
+		decode();
+		execute();
+		writeBack();
+		tick();
+		finishLoad();
 		break;
-	    case 1:
-		info = Mips.regimmtable[rt];
+
+	    case DecodedInstruction.fuseStackAdjust:
+		// addiu $sp; sw relative to $sp
+		src1 = registers[regSP] + first.imm;
+		finishLoad();
+		registers[regSP] = (int) src1;
+		advancePC(pc+8);
+		tick();
+
+		store(registers[regSP] + second.imm, 4, registers[second.rt]);
 		break;
+		
 	    default:
-		info = Mips.optable[op];
-		break;
+		Lib.assertNotReached();
 	    }
 
-	    operation = info.operation;
-	    name = info.name;
-	    format = info.format;
-	    flags = info.flags;
+	    registers[regPC] = pc+8;
+	    registers[regNextPC] = pc+12;
+	}
+
+	private boolean test(int flag) {
+	    return Lib.test(flag, flags);
+	}
+
+	void fetch() throws MipsException {
+	    decoded = decodedAt(translate(registers[regPC], 4, false));
+	    value = decoded.value;
+	}
+
+	int load(int vaddr, int size) throws MipsException {
+	    return readMem(vaddr, size);
+	}
+
+	void store(int vaddr, int size, int value) throws MipsException {
+	    writeMem(vaddr, size, value);
+	}
+	
+	void decode() {
+	    // the register-independent fields come from the decode cache
+	    op = decoded.op;
+	    rs = decoded.rs;
+	    rt = decoded.rt;
+	    rd = decoded.rd;
+	    sh = decoded.sh;
+	    func = decoded.func;
+	    target = decoded.target;
+	    imm = decoded.imm;
+
+	    operation = decoded.operation;
+	    name = decoded.name;
+	    format = decoded.format;
+	    flags = decoded.flags;
+
+	    size = decoded.size;
+	    dstReg = decoded.dstReg;
 
 	    mask = 0xFFFFFFFF;	
 	    branch = true;
-	
-	    // get memory access size
-	    if (test(Mips.SIZEB))
-		size = 1;
-	    else if (test(Mips.SIZEH))
-		size = 2;
-	    else if (test(Mips.SIZEW))
-		size = 4;
-	    else
-		size = 0;
 
 	    // get nextPC
 	    nextPC = registers[regNextPC]+4;
 
-	    // get dstReg
-	    if (test(Mips.DSTRA))
-		dstReg = regRA;
-	    else if (format == Mips.IFMT)
-		dstReg = rt;
-	    else if (format == Mips.RFMT)
-		dstReg = rd;
-	    else
-		dstReg = -1;
-
 	    // get jtarget
 	    if (format == Mips.RFMT)
 		jtarget = registers[rs];
@@ -717,12 +1723,9 @@ public final class Processor {
 		src1 &= 0xFFFFFFFFL;
 		src2 &= 0xFFFFFFFFL;
 	    }	    
-
-	    if (Lib.test(dbgDisassemble) || Lib.test(dbgFullDisassemble))
-		print();	    
 	}
 
-	private void print() {
+	void print() {
 	    if (Lib.test(dbgDisassemble) && Lib.test(dbgProcessor) &&
 		!Lib.test(dbgFullDisassemble))
 		System.out.print("PC=0x" + Lib.toHexString(registers[regPC])
@@ -845,7 +1848,7 @@ public final class Processor {
 		System.out.print("\n");
 	}
 
-	private void execute() throws MipsException {
+	void execute() throws MipsException {
 	    int value;
 	    int preserved;
 	    
@@ -869,7 +1872,7 @@ public final class Processor {
 			throw new ArithmeticException();
 		}
 		catch (ArithmeticException e) {
-		    throw new MipsException(exceptionOverflow);
+		    throw fault(exceptionOverflow);
 		}
 		break;
 
@@ -939,10 +1942,10 @@ public final class Processor {
 		break;
 
 	    case Mips.SYSCALL:
-		throw new MipsException(exceptionSyscall);
+		throw fault(exceptionSyscall);
 
 	    case Mips.LOAD:
-		value = readMem(addr, size);
+		value = load(addr, size);
 		
 		if (!test(Mips.UNSIGNED))
 		    dst = Lib.extend(value, 0, size*8);
@@ -952,7 +1955,7 @@ public final class Processor {
 		break;
 
 	    case Mips.LWL:
-		value = readMem(addr&~0x3, 4);
+		value = load(addr&~0x3, 4);
 
 		// LWL shifts the input left so the addressed byte is highest
 		preserved = (3-(addr&0x3))*8;	// number of bits to preserve
@@ -963,7 +1966,7 @@ public final class Processor {
 		break;
 
 	    case Mips.LWR:
-		value = readMem(addr&~0x3, 4);
+		value = load(addr&~0x3, 4);
 
 		// LWR shifts the input right so the addressed byte is lowest
 		preserved = (addr&0x3)*8;	// number of bits to preserve
@@ -974,11 +1977,11 @@ public final class Processor {
 		break;
 
 	    case Mips.STORE:
-		writeMem(addr, size, (int) src2);
+		store(addr, size, (int) src2);
 		break;
 
 	    case Mips.SWL:
-		value = readMem(addr&~0x3, 4);
+		value = load(addr&~0x3, 4);
 
 		// SWL shifts highest order byte into the addressed position
 		preserved = (3-(addr&0x3))*8;
@@ -988,11 +1991,11 @@ public final class Processor {
 		// merge values
 		dst = (dst & mask) | (value & ~mask);
 
-		writeMem(addr&~0x3, 4, (int) dst);
+		store(addr&~0x3, 4, (int) dst);
 		break;
 
 	    case Mips.SWR:
-		value = readMem(addr&~0x3, 4);
+		value = load(addr&~0x3, 4);
 
 		// SWR shifts the lowest order byte into the addressed position
 		preserved = (addr&0x3)*8;
@@ -1002,24 +2005,24 @@ public final class Processor {
 		// merge values
 		dst = (dst & mask) | (value & ~mask);
 
-		writeMem(addr&~0x3, 4, (int) dst);
+		store(addr&~0x3, 4, (int) dst);
 		break;
 
 	    case Mips.UNIMPL:
 		System.err.println("Warning: encountered unimplemented inst");
 		
 	    case Mips.INVALID:
-		throw new MipsException(exceptionIllegalInstruction);
+		throw fault(exceptionIllegalInstruction);
 
 	    default:
 		Lib.assertNotReached();
 	    }
 	}
 
-	private void writeBack() throws MipsException {
+	void writeBack() throws MipsException {
 	    // if instruction is signed, but carry bit !+ sign bit, throw
 	    if (test(Mips.OVERFLOW) && Lib.test(dst,31) != Lib.test(dst,32))
-		throw new MipsException(exceptionOverflow);
+		throw fault(exceptionOverflow);
 
 	    if (test(Mips.DELAYEDLOAD))
 		delayedLoad(dstReg, (int) dst, mask);
@@ -1032,26 +2035,19 @@ public final class Processor {
 	    if (test(Mips.DST) && dstReg != 0)
 		registers[dstReg] = (int) dst;
 
-	    if ((test(Mips.DST) || test(Mips.DELAYEDLOAD)) && dstReg != 0) {
-		if (Lib.test(dbgFullDisassemble)) {
-		    System.out.print("#0x" + Lib.toHexString((int) dst));
-		    if (test(Mips.DELAYEDLOAD))
-			System.out.print(" (delayed load)");
-		}
-	    }
+	    if (profiler != null)
+		profiler.count(registers[regPC], operation, test(Mips.BRANCH),
+			       branch);
 
 	    if (test(Mips.BRANCH) && branch) {
 		nextPC = jtarget;
 	    }
 
 	    advancePC(nextPC);
-
-	    if ((Lib.test(dbgDisassemble) && !Lib.test(dbgProcessor)) ||
-		Lib.test(dbgFullDisassemble))
-		System.out.print("\n");
 	}
     
 	// state used to execute a single instruction
+	DecodedInstruction decoded;
 	int value, op, rs, rt, rd, sh, func, target, imm;
 	int operation, format, flags;
 	String name;
@@ -1063,6 +2059,185 @@ public final class Processor {
 	boolean branch;
     }
 
+    /**
+     * An instruction that also prints the processor and disassembly traces
+     * requested by the debug flags. Only used when one of those flags is set,
+     * so that <tt>Instruction</tt> need not test them.
+     */
+    private class TracedInstruction extends Instruction {
+	void fetch() throws MipsException {
+	    if ((Lib.test(dbgDisassemble) && !Lib.test(dbgProcessor)) ||
+		Lib.test(dbgFullDisassemble))
+		System.out.print("PC=0x" + Lib.toHexString(registers[regPC])
+				 + "\t");
+
+	    int vaddr = registers[regPC];
+	    
+	    if (Lib.test(dbgProcessor))
+		System.out.println("\treadMem vaddr=0x" + Lib.toHexString(vaddr)
+				   + ", size=4");
+
+	    decoded = decodedAt(traceTranslate(vaddr, 4, false));
+	    value = decoded.value;
+
+	    if (Lib.test(dbgProcessor))
+		System.out.println("\t\tvalue read=0x" +
+				   Lib.toHexString(value, 8));
+	}
+
+	int load(int vaddr, int size) throws MipsException {
+	    return traceReadMem(vaddr, size);
+	}
+
+	void store(int vaddr, int size, int value) throws MipsException {
+	    traceWriteMem(vaddr, size, value);
+	}
+
+	void decode() {
+	    super.decode();
+
+	    if (Lib.test(dbgDisassemble) || Lib.test(dbgFullDisassemble))
+		print();	    
+	}
+
+	void writeBack() throws MipsException {
+	    super.writeBack();
+
+	    if ((Lib.test(Mips.DST, flags) || Lib.test(Mips.DELAYEDLOAD, flags))
+		&& dstReg != 0) {
+		if (Lib.test(dbgFullDisassemble)) {
+		    System.out.print("#0x" + Lib.toHexString((int) dst));
+		    if (Lib.test(Mips.DELAYEDLOAD, flags))
+			System.out.print(" (delayed load)");
+		}
+	    }
+
+	    if ((Lib.test(dbgDisassemble) && !Lib.test(dbgProcessor)) ||
+		Lib.test(dbgFullDisassemble))
+		System.out.print("\n");
+	}
+    }
+
+    /**
+     * The register-independent part of a decoded instruction. Instances are
+     * immutable once cached, so they can be cached per physical word and
+     * shared by every execution of that word.
+     */
+    private static class DecodedInstruction {
+	DecodedInstruction(int value) {
+	    this.value = value;
+	    
+	    op = Lib.extract(value, 26, 6);
+	    rs = Lib.extract(value, 21, 5);
+	    rt = Lib.extract(value, 16, 5);
+	    rd = Lib.extract(value, 11, 5);
+	    sh = Lib.extract(value, 6, 5);
+	    func = Lib.extract(value, 0, 6);
+	    target = Lib.extract(value, 0, 26);
+	    imm = Lib.extend(value, 0, 16);
+
+	    Mips info;
+	    switch (op) {
+	    case 0:
+		info = Mips.specialtable[func];
+		break;
+	    case 1:
+		info = Mips.regimmtable[rt];
+		break;
+	    default:
+		info = Mips.optable[op];
+		break;
+	    }
+
+	    operation = info.operation;
+	    name = info.name;
+	    format = info.format;
+	    flags = info.flags;
+
+	    // get memory access size
+	    if (Lib.test(Mips.SIZEB, flags))
+		size = 1;
+	    else if (Lib.test(Mips.SIZEH, flags))
+		size = 2;
+	    else if (Lib.test(Mips.SIZEW, flags))
+		size = 4;
+	    else
+		size = 0;
+
+	    // get dstReg
+	    if (Lib.test(Mips.DSTRA, flags))
+		dstReg = regRA;
+	    else if (format == Mips.IFMT)
+		dstReg = rt;
+	    else if (format == Mips.RFMT)
+		dstReg = rd;
+	    else
+		dstReg = -1;
+	}
+
+	/**
+	 * Check whether this instruction and the one following it form one of
+	 * the pairs that can be run as one, and if so, remember the second one.
+	 * Must be called before the instruction is cached.
+	 *
+	 * @param	next	the instruction in the following word.
+	 */
+	void fuse(DecodedInstruction next) {
+	    if (operation == Mips.LUI && rt != 0 &&
+		(next.operation == Mips.OR || next.operation == Mips.ADD) &&
+		next.flags == (Mips.DST|Mips.SRC2IMM|
+			       (next.operation == Mips.OR ? Mips.UNSIGNED : 0)) &&
+		next.rs == rt && next.rt != 0)
+		fusion = fuseConstant;
+	    else if (operation == Mips.SLT && dstReg != 0 &&
+		     (next.operation == Mips.BEQ ||
+		      next.operation == Mips.BNE) &&
+		     (next.rs == dstReg || next.rt == dstReg))
+		fusion = fuseCompareBranch;
+	    else if (operation == Mips.LOAD && next.value == 0)
+		fusion = fuseLoadNop;
+	    else if (operation == Mips.ADD && flags == (Mips.DST|Mips.SRC2IMM) &&
+		     rs == regSP && rt == regSP &&
+		     next.operation == Mips.STORE && next.size == 4 &&
+		     next.rs == regSP)
+		fusion = fuseStackAdjust;
+	    else
+		return;
+
+	    fusedWith = next;
+	}
+
+	final int value, op, rs, rt, rd, sh, func, target, imm;
+	final int operation, format, flags;
+	final String name;
+	final int size, dstReg;
+
+	/** The kind of pair this instruction starts, if any. */
+	int fusion = fuseNone;
+	/** The second instruction of the pair, if any. */
+	DecodedInstruction fusedWith = null;
+
+	static final int
+	    fuseNone = 0,
+	    fuseConstant = 1,		// lui; ori or addiu of the same register
+	    fuseCompareBranch = 2,	// slt*; beq or bne on the result
+	    fuseLoadNop = 3,		// load; nop in its delay slot
+	    fuseStackAdjust = 4;	// addiu $sp; sw relative to $sp
+    }
+
+    /**
+     * A straight-line run of pre-decoded instructions in one physical page,
+     * ending with a branch and its delay slot, a syscall, an illegal
+     * instruction, or the end of the page.
+     */
+    private static class Block {
+	Block(DecodedInstruction[] code) {
+	    this.code = code;
+	}
+
+	final DecodedInstruction[] code;
+    }
+
     private static class Mips {
 	Mips() {
 	}
@@ -1120,6 +2295,15 @@ public final class Processor {
 	    SWR		= 40,
 	    MAX		= 40;
 
+	// operation names, for the profiler
+	static final String[] operationNames = {
+	    "invalid", "unimpl", "add", "sub", "mult", "div", "sll", "sra",
+	    "srl", "slt", "and", "or", "nor", "xor", "lui", null, null, null,
+	    null, null, null, "mflo", "mfhi", "mtlo", "mthi", "jump", "beq",
+	    "bne", "blez", "bgtz", "bltz", "bgez", "syscall", "load", null,
+	    null, "lwl", "lwr", "store", "swl", "swr"
+	};
+
 	static final int
 	    IFMT = 1,
 	    JFMT = 2,
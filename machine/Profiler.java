@@ -0,0 +1,249 @@
+// PART OF THE MACHINE SIMULATION. DO NOT CHANGE.
+
+package nachos.machine;
+
+import nachos.security.*;
+
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.TreeMap;
+
+/**
+ * Counts the user instructions executed by the processor, per virtual PC and
+ * per class of instruction, and how often each branch was taken. Only used if
+ * <tt>Processor.profile</tt> is <tt>true</tt>.
+ *
+ * <p>
+ * Counts are kept by virtual address, so if several processes run, their
+ * counts for the same PC are added together. Instructions that cause an
+ * exception (including <tt>syscall</tt>) are not counted. The per-PC counts
+ * are <tt>int</tt>s, kept in one small array per virtual page that has run an
+ * instruction, so the profile's size depends on how much code runs, not on
+ * how high its addresses are. A count that reaches
+ * <tt>Integer.MAX_VALUE</tt> stays there.
+ */
+final class Profiler {
+    /**
+     * Allocate a new profiler.
+     *
+     * @param	privilege	encapsulates privileged access to the Nachos
+     *				machine.
+     * @param	classNames	the name of each instruction class, indexed by
+     *				the class numbers passed to <tt>count()</tt>.
+     *				Classes without a name are never reported.
+     */
+    Profiler(Privilege privilege, String[] classNames) {
+	this.privilege = privilege;
+	this.classNames = classNames;
+
+	classCounts = new long[classNames.length];
+
+	fileName = Config.getString("Processor.profileFile", "nachos.prof");
+	top = Config.getInteger("Processor.profileTop", 20);
+	Lib.assertTrue(top >= 0, "bad value for Processor.profileTop");
+    }
+
+    /**
+     * Count one executed instruction.
+     *
+     * @param	pc		the address of the instruction.
+     * @param	cls		the class of the instruction.
+     * @param	isBranch	<tt>true</tt> if the instruction is a branch or
+     *				jump.
+     * @param	wasTaken	<tt>true</tt> if it is a branch and it was
+     *				taken.
+     */
+    void count(int pc, int cls, boolean isBranch, boolean wasTaken) {
+	int vpn = Processor.pageFromAddress(pc);
+	if (vpn != lastVPN) {
+	    lastPage = pages.get(vpn);
+	    if (lastPage == null) {
+		lastPage = new Page();
+		pages.put(vpn, lastPage);
+	    }
+	    lastVPN = vpn;
+	}
+
+	int word = Processor.offsetFromAddress(pc) / 4;
+	increment(lastPage.counts, word);
+	classCounts[cls]++;
+
+	if (isBranch) {
+	    if (wasTaken)
+		increment(lastPage.taken, word);
+	    else
+		increment(lastPage.notTaken, word);
+	}
+    }
+
+    private static void increment(int[] counts, int word) {
+	if (counts[word] != Integer.MAX_VALUE)
+	    counts[word]++;
+    }
+
+    /**
+     * Print the hottest instructions and the instruction class totals, and
+     * write the full profile to <tt>Processor.profileFile</tt>.
+     */
+    void print() {
+	long total = 0;
+	for (int i=0; i<classCounts.length; i++)
+	    total += classCounts[i];
+
+	System.out.println("Profile: " + total + " instructions");
+
+	System.out.println("Hottest instructions:");
+	int[] hot = hottest(top);
+	for (int i=0; i<hot.length; i++) {
+	    int pc = hot[i];
+	    Page page = pages.get(Processor.pageFromAddress(pc));
+	    int word = Processor.offsetFromAddress(pc) / 4;
+
+	    String line = "    0x" + Lib.toHexString(pc) + " "
+		+ pad(page.counts[word], 10) + " "
+		+ percent(page.counts[word], total);
+
+	    if (page.taken[word] + page.notTaken[word] > 0)
+		line += "  taken " + page.taken[word] + ", not taken "
+		    + page.notTaken[word];
+
+	    System.out.println(line);
+	}
+
+	System.out.println("Instruction classes:");
+	for (int i=0; i<classCounts.length; i++) {
+	    if (classNames[i] != null && classCounts[i] > 0) {
+		String name = classNames[i];
+		while (name.length() < 8)
+		    name += " ";
+		
+		System.out.println("    " + name + " " + pad(classCounts[i], 10)
+				   + " " + percent(classCounts[i], total));
+	    }
+	}
+
+	privilege.doPrivileged(new Runnable() {
+		public void run() { write(); }
+	    });
+    }
+
+    /**
+     * Write the profile as lines of whitespace-separated fields: one
+     * <tt>pc</tt> line per executed instruction (address, count, times taken,
+     * times not taken), then one <tt>class</tt> line per instruction class.
+     */
+    private void write() {
+	try {
+	    PrintWriter out = new PrintWriter(new FileWriter(fileName));
+
+	    out.println("# pc address count taken not-taken");
+	    for (Iterator<Integer> i=pages.keySet().iterator(); i.hasNext(); ) {
+		int vpn = i.next();
+		Page page = pages.get(vpn);
+
+		for (int word=0; word<wordsPerPage; word++) {
+		    if (page.counts[word] > 0) {
+			int pc = Processor.makeAddress(vpn, word*4);
+			out.println("pc 0x" + Lib.toHexString(pc) + " "
+				    + page.counts[word] + " "
+				    + page.taken[word] + " "
+				    + page.notTaken[word]);
+		    }
+		}
+	    }
+
+	    out.println("# class name count");
+	    for (int i=0; i<classCounts.length; i++) {
+		if (classNames[i] != null && classCounts[i] > 0)
+		    out.println("class " + classNames[i] + " " + classCounts[i]);
+	    }
+
+	    out.close();
+
+	    System.out.println("Profile written to " + fileName);
+	}
+	catch (IOException e) {
+	    System.out.println("Could not write profile to " + fileName);
+	}
+    }
+
+    /**
+     * Return the addresses of the <i>n</i> most executed instructions, most
+     * executed first.
+     */
+    private int[] hottest(int n) {
+	if (n == 0)
+	    return new int[0];
+
+	int[] hot = new int[n];
+	int[] hotCounts = new int[n];
+	int found = 0;
+
+	for (Iterator<Integer> i=pages.keySet().iterator(); i.hasNext(); ) {
+	    int vpn = i.next();
+	    int[] counts = pages.get(vpn).counts;
+
+	    for (int word=0; word<wordsPerPage; word++) {
+		int count = counts[word];
+		if (count == 0 || (found == n && count <= hotCounts[n-1]))
+		    continue;
+
+		// insertion into the sorted prefix, dropping the coldest if full
+		int j = (found < n) ? found++ : n-1;
+		while (j > 0 && hotCounts[j-1] < count) {
+		    hot[j] = hot[j-1];
+		    hotCounts[j] = hotCounts[j-1];
+		    j--;
+		}
+		hot[j] = Processor.makeAddress(vpn, word*4);
+		hotCounts[j] = count;
+	    }
+	}
+
+	return Arrays.copyOf(hot, found);
+    }
+
+    private static String pad(long value, int width) {
+	String s = Long.toString(value);
+	while (s.length() < width)
+	    s = " " + s;
+	return s;
+    }
+
+    private static String percent(long count, long total) {
+	long tenths = (total == 0) ? 0 : (count*1000 + total/2) / total;
+	return pad(tenths/10, 3) + "." + (tenths%10) + "%";
+    }
+
+    private Privilege privilege;
+    private String fileName;
+    private int top;
+
+    private String[] classNames;
+    private long[] classCounts;
+
+    /**
+     * The counts for one virtual page of instructions, indexed by word within
+     * the page.
+     */
+    private static class Page {
+	/** Executions of each instruction. */
+	int[] counts = new int[wordsPerPage];
+	/** Times each branch was taken. */
+	int[] taken = new int[wordsPerPage];
+	/** Times each branch was not taken. */
+	int[] notTaken = new int[wordsPerPage];
+    }
+
+    private static final int wordsPerPage = Processor.pageSize / 4;
+
+    /** The counts of every page that has run an instruction, by VPN. */
+    private TreeMap<Integer, Page> pages = new TreeMap<Integer, Page>();
+    /** The VPN of the page last counted in, or -1. */
+    private int lastVPN = -1;
+    /** The page last counted in. */
+    private Page lastPage = null;
+}
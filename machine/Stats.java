@@ -29,6 +29,10 @@ public final class Stats {
 			   + ", TLB misses " + numTLBMisses);
 	System.out.println("Network I/O: received " + numPacketsReceived
 			   + ", sent " + numPacketsSent);
+	if (numHostThreadsReused > 0)
+	    System.out.println("Host threads: created " + numHostThreadsCreated
+			       + ", reused " + numHostThreadsReused
+			       + ", most pooled " + maxHostThreadsPooled);
     }
 
     /**
@@ -61,6 +65,12 @@ public final class Stats {
     public int numPacketsSent = 0;
     /** The total number of packets Nachos has received from the network. */
     public int numPacketsReceived = 0;
+    /** The number of Java threads created to run TCBs. */
+    public int numHostThreadsCreated = 0;
+    /** The number of TCBs started on a pooled Java thread. */
+    public int numHostThreadsReused = 0;
+    /** The largest number of idle Java threads in the TCB pool at once. */
+    public int maxHostThreadsPooled = 0;
 
     /**
      * The amount to advance simulated time after each user instructions is
@@ -5,13 +5,39 @@ package nachos.machine;
 import nachos.security.*;
 import nachos.threads.KThread;
 
+import java.util.ArrayList;
 import java.util.Vector;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
 import java.security.PrivilegedAction;
 
 /**
  * A TCB simulates the low-level details necessary to create, context-switch,
  * and destroy Nachos threads. Each TCB controls an underlying JVM Thread
- * object.
+ * object. If <tt>TCB.virtualThreads</tt> is <tt>true</tt> and the JVM
+ * supports them (Java 21 or later), these are virtual threads, which are much
+ * cheaper to create and switch between than platform threads. If
+ * <tt>TCB.singleCarrier</tt> is <tt>true</tt>, virtual threads are used
+ * too, and every one is run by the same carrier thread, so switching between
+ * two of them just suspends one continuation and resumes the other, without
+ * waking up any host thread. This is still the JDK's own virtual thread
+ * scheduler, limited to one carrier by its system properties; Nachos does
+ * not schedule continuations itself, since the JDK has no public API for
+ * that. With virtual threads, even the first TCB runs on one, and the
+ * thread that started Nachos just waits for it to exit.
+ *
+ * <p>
+ * When a TCB is destroyed, its Java thread is kept in a pool of up to
+ * <tt>TCB.poolSize</tt> idle threads, and the next TCB started runs on it
+ * instead of on a new thread.
+ *
+ * <p>
+ * Only one TCB runs at a time. A context switch hands the processor to the
+ * next TCB by setting its <tt>running</tt> flag and unparking its thread, and
+ * then parks the current thread until its own flag is set again.
  *
  * <p>
  * Do not use any methods in <tt>java.lang.Thread</tt>, as they are not
@@ -40,6 +66,103 @@ public final class TCB {
     public static void givePrivilege(Privilege privilege) {
 	TCB.privilege = privilege;
 	privilege.tcb = new TCBPrivilege();
+
+	threadLimit = Config.getInteger("TCB.maxThreads", maxThreads);
+	Lib.assertTrue(threadLimit > 0, "bad value for TCB.maxThreads");
+
+	poolSize = Config.getInteger("TCB.poolSize", 16);
+	Lib.assertTrue(poolSize >= 0, "bad value for TCB.poolSize");
+
+	boolean singleCarrier = Config.getBoolean("TCB.singleCarrier", false);
+
+	if (singleCarrier || Config.getBoolean("TCB.virtualThreads", false)) {
+	    /* Creating a carrier thread needs permissions the kernel does not
+	     * have, and the JVM may do it whenever a kernel thread starts,
+	     * unparks or does blocking I/O on a virtual thread. So we fix the
+	     * number of carriers, and create them all before the security
+	     * manager is enabled. These properties are only read when the
+	     * first virtual thread is created.
+	     */
+	    int carriers = 1;
+	    if (!singleCarrier) {
+		carriers = Integer.getInteger(
+		    "jdk.virtualThreadScheduler.parallelism",
+		    Runtime.getRuntime().availableProcessors());
+	    }
+
+	    System.setProperty("jdk.virtualThreadScheduler.parallelism",
+			       "" + carriers);
+	    System.setProperty("jdk.virtualThreadScheduler.maxPoolSize",
+			       "" + carriers);
+
+	    newVirtualThread = findVirtualThreadBuilder();
+	    Lib.assertTrue(newVirtualThread != null,
+			   "virtual threads require Java 21 or later");
+
+	    startCarriers(carriers);
+	}
+    }
+
+    /**
+     * Make the JVM's virtual thread scheduler create all its carrier threads,
+     * by running one virtual thread per carrier, each of which spins until
+     * all of them are running.
+     *
+     * @param	carriers	the number of carrier threads.
+     */
+    private static void startCarriers(final int carriers) {
+	final AtomicInteger running = new AtomicInteger();
+	Thread[] threads = new Thread[carriers];
+
+	for (int i=0; i<carriers; i++) {
+	    threads[i] = newJavaThread(new Runnable() {
+		    public void run() {
+			running.incrementAndGet();
+			while (running.get() < carriers)
+			    Thread.onSpinWait();
+		    }
+		});
+	    threads[i].start();
+	}
+
+	try {
+	    for (int i=0; i<carriers; i++)
+		threads[i].join();
+	}
+	catch (InterruptedException e) {
+	    Lib.assertNotReached("interrupted starting carrier threads");
+	}
+    }
+
+    /**
+     * Look up <tt>Thread.ofVirtual().unstarted(Runnable)</tt>. Done through
+     * method handles, so that Nachos still builds and runs on JVMs without
+     * virtual threads, and before the security manager is enabled.
+     *
+     * @return	a method handle taking a <tt>Runnable</tt> and returning an
+     *		unstarted virtual <tt>Thread</tt>, or <tt>null</tt> if the JVM
+     *		does not have virtual threads.
+     */
+    private static MethodHandle findVirtualThreadBuilder() {
+	try {
+	    MethodHandles.Lookup lookup = MethodHandles.publicLookup();
+	    Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+	    Class<?> ofVirtualClass =
+		Class.forName("java.lang.Thread$Builder$OfVirtual");
+
+	    Object builder =
+		lookup.findStatic(Thread.class, "ofVirtual",
+				  MethodType.methodType(ofVirtualClass))
+		.invoke();
+
+	    return lookup.findVirtual(builderClass, "unstarted",
+				      MethodType.methodType(Thread.class,
+							    Runnable.class))
+		.bindTo(builder);
+	}
+	catch (Throwable e) {
+	    return null;
+	}
     }
     
     /**
@@ -66,7 +189,7 @@ public final class TCB {
 	/* Make sure there aren't too many running TCBs already. This
 	 * limitation exists in an effort to prevent wild thread usage.
 	 */
-	Lib.assertTrue(runningThreads.size() < maxThreads);
+	Lib.assertTrue(runningThreads.size() < threadLimit);
 
 	isFirstTCB = (currentTCB == null);
 
@@ -86,28 +209,61 @@ public final class TCB {
 	this.target = target;
 
 	if (!isFirstTCB) {
-	    /* If this is not the first TCB, we have to make a new Java thread
-	     * to run it. Creating Java threads is a privileged operation.
+	    /* If this is not the first TCB, we need a Java thread to run it.
+	     * We take an idle one from the pool if there is one. Otherwise we
+	     * have to make a new one, which is a privileged operation.
 	     */
-	    tcbTarget = new Runnable() {
-		    public void run() { threadroot(); }
-		};
+	    boolean fresh = idleHosts.isEmpty();
 
-	    privilege.doPrivileged(new Runnable() {
-		    public void run() { javaThread = new Thread(tcbTarget); }
-		});
+	    if (fresh) {
+		host = new HostThread();
+
+		privilege.doPrivileged(new Runnable() {
+			public void run() { host.thread = newJavaThread(host); }
+		    });
+
+		privilege.stats.numHostThreadsCreated++;
+	    }
+	    else {
+		host = idleHosts.remove(idleHosts.size()-1);
+		privilege.stats.numHostThreadsReused++;
+	    }
+
+	    javaThread = host.thread;
 
-	    /* The Java thread hasn't yet started, but we need to get it
-	     * blocking in yield(). We do this by temporarily turning off the
-	     * current TCB, starting the new Java thread, and waiting for it
-	     * to wake us up from threadroot(). Once the new TCB wakes us up,
-	     * it's safe to context switch to the new TCB.
+	    /* The Java thread isn't running this TCB yet, but we need to get
+	     * it blocking in yield(). We do this by temporarily turning off
+	     * the current TCB, handing this TCB to the host thread, starting
+	     * or unparking it, and waiting for it to wake us up from
+	     * threadroot(). Once the new TCB wakes us up, it's safe to context
+	     * switch to the new TCB.
 	     */
 	    currentTCB.running = false;
-	    
-	    this.javaThread.start();
+
+	    host.next = this;
+	    if (fresh)
+		javaThread.start();
+	    else
+		LockSupport.unpark(javaThread);
+
 	    currentTCB.waitForInterrupt();
 	}
+	else if (newVirtualThread != null) {
+	    /* This is the first TCB, but the current Java thread is not
+	     * virtual. So that every switch is between virtual threads, we
+	     * run this TCB on a new one, and park the current thread for good.
+	     * Nachos exits from a TCB, so nothing needs to wake it.
+	     */
+	    host = new HostThread();
+	    host.thread = newJavaThread(host);
+	    host.next = this;
+
+	    javaThread = host.thread;
+	    javaThread.start();
+
+	    while (true)
+		LockSupport.park(this);
+	}
 	else {
 	    /* This is the first TCB, so we don't need to make a new Java
 	     * thread to run it; we just steal the current Java thread.
@@ -119,6 +275,23 @@ public final class TCB {
 	}
     }
 
+    /**
+     * Create the Java thread for a new TCB: a virtual thread if enabled, and
+     * a platform thread otherwise. Must be called with privilege.
+     */
+    private static Thread newJavaThread(Runnable target) {
+	if (newVirtualThread == null)
+	    return new Thread(target);
+
+	try {
+	    return (Thread) newVirtualThread.invoke(target);
+	}
+	catch (Throwable e) {
+	    Lib.assertNotReached("could not create virtual thread: " + e);
+	    return null;
+	}
+    }
+
     /**
      * Return the TCB of the currently running thread.
      */
@@ -181,6 +354,20 @@ public final class TCB {
 	toBeDestroyed = null;
 
 	this.done = true;
+
+	/* Decide whether the Java thread goes back to the pool before waking
+	 * it up, since it checks as soon as it is done unwinding.
+	 */
+	if (host != null) {
+	    host.pooled = (idleHosts.size() < poolSize);
+	    if (host.pooled) {
+		idleHosts.add(host);
+		privilege.stats.maxHostThreadsPooled =
+		    Math.max(privilege.stats.maxHostThreadsPooled,
+			     idleHosts.size());
+	    }
+	}
+
 	currentTCB.running = false;
 
 	this.interrupt();
@@ -280,29 +467,29 @@ public final class TCB {
     }
 
     /**
-     * Waits on the monitor bound to this TCB until its <tt>running</tt> flag
+     * Parks the Java thread bound to this TCB until its <tt>running</tt> flag
      * is set to <tt>true</tt>. <tt>waitForInterrupt()</tt> is used whenever a
      * TCB needs to go to wait for its turn to run. This includes the ping-pong
      * process of starting and destroying TCBs, as well as in context switching
      * from this TCB to another. We don't rely on <tt>currentTCB</tt>, since it
      * is updated by <tt>contextSwitch()</tt> before we get called.
      */
-    private synchronized void waitForInterrupt() {
-	while (!running) {
-	    try { wait(); }
-	    catch (InterruptedException e) { }
-	}
+    private void waitForInterrupt() {
+	// park() may return spuriously, so check the flag every time
+	while (!running)
+	    LockSupport.park(this);
     }
 
     /**
      * Wake up this TCB by setting its <tt>running</tt> flag to <tt>true</tt>
-     * and signalling the monitor bound to it. Used in the ping-pong process of
-     * starting and destroying TCBs, as well as in context switching to this
-     * TCB.
+     * and unparking the Java thread bound to it. Used in the ping-pong process
+     * of starting and destroying TCBs, as well as in context switching to this
+     * TCB. If the thread has not parked yet, <tt>unpark()</tt> leaves it a
+     * permit, so its next <tt>park()</tt> returns at once.
      */
-    private synchronized void interrupt() {
+    private void interrupt() {
 	running = true;
-	notify();
+	LockSupport.unpark(javaThread);
     }
 
     private void associateThread(KThread thread) {
@@ -319,6 +506,37 @@ public final class TCB {
 	    nachosThread = thread;
     }
 
+    /**
+     * The body of every Java thread created by <tt>start()</tt>. Runs the
+     * TCB handed to it, and then, if <tt>destroy()</tt> put it in the pool,
+     * parks until <tt>start()</tt> hands it another one.
+     */
+    private static class HostThread implements Runnable {
+	public void run() {
+	    while (true) {
+		TCB tcb;
+		while ((tcb = next) == null)
+		    LockSupport.park(this);
+
+		// clear it before threadroot() lets start() return
+		next = null;
+		tcb.threadroot();
+
+		if (!pooled) {
+		    Machine.hostThreadExiting();
+		    return;
+		}
+	    }
+	}
+
+	/** The Java thread running this host. */
+	private Thread thread;
+	/** The TCB to run next, set by <tt>start()</tt>. */
+	private volatile TCB next = null;
+	/** Set by <tt>destroy()</tt> if this host was put in the pool. */
+	private volatile boolean pooled = false;
+    }
+
     private static void authorizeDestroy(KThread thread) {
 	// make sure AutoGrader.finishingThread() gets called only once per
 	// destroy
@@ -327,11 +545,38 @@ public final class TCB {
     }
 
     /**
-     * The maximum number of started, non-destroyed TCB's that can be in
-     * existence.
+     * The default maximum number of started, non-destroyed TCB's that can be
+     * in existence. The <tt>TCB.maxThreads</tt> key overrides it.
      */
     public static final int maxThreads = 250;
 
+    /**
+     * The maximum number of started, non-destroyed TCB's that can be in
+     * existence: <tt>TCB.maxThreads</tt>, or <tt>maxThreads</tt> if it is not
+     * set.
+     */
+    private static int threadLimit;
+
+    /**
+     * Creates an unstarted virtual thread, or <tt>null</tt> to use platform
+     * threads.
+     */
+    private static MethodHandle newVirtualThread = null;
+
+    /**
+     * The most idle Java threads to keep for reuse. Set by
+     * <tt>TCB.poolSize</tt>, which defaults to 16; 0 disables the pool.
+     */
+    private static int poolSize;
+
+    /**
+     * Idle Java threads, waiting in <tt>HostThread.run()</tt> for a TCB to
+     * run. Only used by the current TCB, in <tt>start()</tt> and
+     * <tt>destroy()</tt>.
+     */
+    private static ArrayList<HostThread> idleHosts =
+	new ArrayList<HostThread>();
+
     /**
      * A reference to the currently running TCB. It is initialized to
      * <tt>null</tt> when the <tt>TCB</tt> class is loaded, and then the first
@@ -354,7 +599,7 @@ public final class TCB {
      * on each TCB object. TCB objects are removed only in each of the
      * <tt>catch</tt> clauses of <tt>threadroot()</tt>, one of which is always
      * invoked on thread termination. The maximum number of threads in
-     * <tt>runningThreads</tt> is limited to <tt>maxThreads</tt> by
+     * <tt>runningThreads</tt> is limited to <tt>threadLimit</tt> by
      * <tt>start(Runnable)</tt>. If <tt>threadroot()</tt> drops the number of
      * TCB objects in <tt>runningThreads</tt> to zero, Nachos exits, so once
      * the first TCB is created, this vector is basically never empty.
@@ -386,9 +631,11 @@ public final class TCB {
      * started and have not terminated. <tt>running</tt> is only <tt>true</tt>
      * when the associated Java thread ought to run ASAP. When starting or
      * destroying a TCB, this is temporarily true for a thread other than that
-     * of the current TCB.
+     * of the current TCB. Volatile, because it is the only thing passed
+     * between the parked and unparking threads; everything written before it
+     * is set is visible to the thread that sees it set.
      */
-    private boolean running = false;
+    private volatile boolean running = false;
 
     /**
      * Set to <tt>true</tt> by <tt>destroy()</tt>, so that when
@@ -400,7 +647,7 @@ public final class TCB {
     private KThread nachosThread = null;
     private boolean associated = false;
     private Runnable target;
-    private Runnable tcbTarget;
+    private HostThread host = null;
 
     private static class TCBPrivilege implements Privilege.TCBPrivilege {
 	public void associateThread(KThread thread) {
@@ -13,6 +13,13 @@ import nachos.security.*;
  * interrupt to occur every time approximately 500 clock ticks pass. There is
  * a small degree of randomness here, so interrupts do not occur exactly every
  * 500 ticks.
+ *
+ * <p>
+ * If <tt>Timer.tickless</tt> is <tt>true</tt>, the timer does not interrupt
+ * periodically. Instead it is a one-shot timer: the kernel calls
+ * <tt>setNextInterrupt()</tt> with the time at which it next needs an
+ * interrupt (to wake a sleeping thread, or to end a time slice), and the timer
+ * interrupts then, once.
  */
 public final class Timer {
     /**
@@ -37,7 +44,45 @@ public final class Timer {
 		}
 	    };
 
-	scheduleInterrupt();
+	tickless = Config.getBoolean("Timer.tickless", false);
+
+	if (!tickless)
+	    scheduleInterrupt();
+    }
+
+    /**
+     * Test whether the timer is in tickless mode, in which it only interrupts
+     * when asked to by <tt>setNextInterrupt()</tt>.
+     *
+     * @return	<tt>true</tt> if the timer is tickless.
+     */
+    public boolean isTickless() {
+	return tickless;
+    }
+
+    /**
+     * Arrange for the next timer interrupt to occur at the specified time,
+     * replacing the time set by any earlier call. Only allowed in tickless
+     * mode.
+     *
+     * @param	time	the time at which to interrupt. If it is not in the
+     *			future, the interrupt occurs on the next tick. If it is
+     *			<tt>Long.MAX_VALUE</tt>, no interrupt occurs.
+     */
+    public void setNextInterrupt(long time) {
+	Lib.assertTrue(tickless);
+
+	if (time == nextInterrupt)
+	    return;
+
+	privilege.interrupt.cancel(nextInterruptHandle);
+	nextInterrupt = time;
+
+	if (time != Long.MAX_VALUE) {
+	    long delay = Math.max(1, time - getTime());
+	    nextInterruptHandle =
+		privilege.interrupt.schedule(delay, "timer", timerInterrupt);
+	}
     }
 
     /**
@@ -60,7 +105,11 @@ public final class Timer {
     }
 
     private void timerInterrupt() {
-	scheduleInterrupt();
+	if (tickless)
+	    nextInterrupt = Long.MAX_VALUE;
+	else
+	    scheduleInterrupt();
+	
 	scheduleAutoGraderInterrupt();
 
 	lastTimerInterrupt = getTime();
@@ -86,4 +135,9 @@ public final class Timer {
 
     private Privilege privilege;
     private Runnable handler = null;
+
+    private boolean tickless;
+    /** In tickless mode, the time of the pending interrupt, if any. */
+    private long nextInterrupt = Long.MAX_VALUE;
+    private long nextInterruptHandle = -1;
 }
@@ -0,0 +1,122 @@
+// PART OF THE MACHINE SIMULATION. DO NOT CHANGE.
+
+package nachos.machine;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Prints a trace file written by <tt>TraceWriter</tt>, oldest record first,
+ * disassembling each instruction. Runs outside of Nachos:
+ *
+ * <pre>
+ * java nachos.machine.TraceReader <i>tracefile</i>
+ * </pre>
+ */
+public final class TraceReader {
+    private TraceReader() {
+    }
+
+    /**
+     * Print the trace file named by the only argument.
+     *
+     * @param	args	the command line arguments.
+     */
+    public static void main(String[] args) throws IOException {
+	if (args.length != 1) {
+	    System.err.println("usage: java nachos.machine.TraceReader "
+			       + "<tracefile>");
+	    System.exit(1);
+	}
+
+	FileChannel channel = FileChannel.open(new File(args[0]).toPath(),
+					       StandardOpenOption.READ);
+
+	ByteBuffer header = map(channel, 0, TraceWriter.headerSize);
+	if (header.getInt(0) != TraceWriter.magic ||
+	    header.getInt(4) != TraceWriter.recordSize) {
+	    System.err.println(args[0] + ": not a trace file");
+	    System.exit(1);
+	}
+
+	int segmentSize = header.getInt(8);
+	int numSegments = header.getInt(12);
+	long numRecords = header.getLong(16);
+	long perSegment = segmentSize / TraceWriter.recordSize;
+
+	// only the last numSegments segments survive
+	long first = 0;
+	if (numRecords > 0) {
+	    long lastSegment = (numRecords-1) / perSegment;
+	    first = Math.max(0, lastSegment - (numSegments-1)) * perSegment;
+	}
+
+	if (first > 0)
+	    System.out.println("(" + first + " older records overwritten)");
+
+	ByteBuffer segment = null;
+	for (long r=first; r<numRecords; r++) {
+	    if (r == first || r % perSegment == 0) {
+		long index = (r / perSegment) % numSegments;
+		long position = TraceWriter.headerSize + index*segmentSize;
+		segment = map(channel, position, segmentSize);
+		segment.position((int) (r % perSegment) *
+				 TraceWriter.recordSize);
+	    }
+
+	    int pc = segment.getInt();
+	    int instruction = segment.getInt();
+	    int vaddr = segment.getInt();
+	    int cause = segment.getInt();
+
+	    System.out.println(format(pc, instruction, vaddr, cause));
+	}
+
+	channel.close();
+    }
+
+    private static String format(int pc, int instruction, int vaddr,
+				 int cause) {
+	String line = "PC=0x" + Lib.toHexString(pc) + " "
+	    + Lib.toHexString(instruction) + "\t";
+
+	boolean hasBadVAddr = (cause == Processor.exceptionPageFault ||
+			       cause == Processor.exceptionTLBMiss ||
+			       cause == Processor.exceptionReadOnly ||
+			       cause == Processor.exceptionBusError ||
+			       cause == Processor.exceptionAddressError);
+
+	// a failed fetch leaves the instruction word 0, which is a nop, and
+	// nops can't fault
+	if (hasBadVAddr && instruction == 0 && vaddr == pc)
+	    return line + "exception: " + Processor.exceptionNames[cause].trim()
+		+ " fetching instruction";
+
+	line += Processor.disassemble(pc, instruction);
+
+	if (cause != -1) {
+	    line += "\texception: " + Processor.exceptionNames[cause].trim();
+	    if (hasBadVAddr)
+		line += " at 0x" + Lib.toHexString(vaddr);
+	}
+	else if (vaddr != 0 || Processor.isMemoryAccess(instruction)) {
+	    line += "\t@0x" + Lib.toHexString(vaddr);
+	}
+
+	return line;
+    }
+
+    private static ByteBuffer map(FileChannel channel, long position,
+				  int size) throws IOException {
+	size = (int) Math.min(size, channel.size() - position);
+
+	ByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, position,
+				     size);
+	buf.order(ByteOrder.LITTLE_ENDIAN);
+	return buf;
+    }
+}
@@ -0,0 +1,170 @@
+// PART OF THE MACHINE SIMULATION. DO NOT CHANGE.
+
+package nachos.machine;
+
+import nachos.security.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Records every user instruction executed, and every exception taken, to a
+ * binary trace file. Only used if <tt>Processor.trace</tt> names a file. The
+ * trace can be printed with <tt>TraceReader</tt>.
+ *
+ * <p>
+ * The file starts with a header of <tt>headerSize</tt> bytes: a magic number,
+ * the record size, the segment size, the number of segments in the ring, and
+ * the number of records written so far. Then come the segments, each holding
+ * <tt>segmentSize / recordSize</tt> records. The whole file is memory-mapped
+ * once, when the writer is created, so recording an instruction is just a few
+ * stores. (Mapping is not repeated later, because the security manager does
+ * not allow the class loading it may cause.) The file is at most 2GB. If the
+ * run needs more records than the file holds, Nachos stops with an assertion
+ * failure rather than lose any of them, unless <tt>Processor.traceWrap</tt> is
+ * set; then the oldest segment is overwritten, so the file holds the end of an
+ * arbitrarily long run.
+ *
+ * <p>
+ * Each record is <tt>recordSize</tt> bytes, little-endian: the virtual PC,
+ * the instruction word (0 if it could not be fetched), the effective address
+ * of a load or store or the bad virtual address of an exception (otherwise
+ * 0), and the exception cause (-1 if none).
+ */
+final class TraceWriter {
+    /**
+     * Allocate a new trace writer, creating or truncating the trace file.
+     *
+     * @param	privilege	encapsulates privileged access to the Nachos
+     *				machine.
+     * @param	fileName	the trace file to write.
+     */
+    TraceWriter(final Privilege privilege, String fileName) {
+	int segmentKB = Config.getInteger("Processor.traceSegmentSize", 4096);
+	numSegments = Config.getInteger("Processor.traceSegments", 16);
+	wrap = Config.getBoolean("Processor.traceWrap", false);
+
+	Lib.assertTrue(segmentKB > 0 && numSegments > 0 &&
+		       (long) segmentKB * 1024 * numSegments + headerSize <=
+		       Integer.MAX_VALUE, "bad trace segment configuration");
+	segmentSize = segmentKB * 1024;
+
+	file = new File(fileName);
+
+	privilege.doPrivileged(new Runnable() {
+		public void run() {
+		    try {
+			channel = FileChannel.open(file.toPath(),
+						   StandardOpenOption.CREATE,
+						   StandardOpenOption.TRUNCATE_EXISTING,
+						   StandardOpenOption.READ,
+						   StandardOpenOption.WRITE);
+			mapping = channel.map(FileChannel.MapMode.READ_WRITE, 0,
+					      headerSize +
+					      segmentSize * numSegments);
+		    }
+		    catch (IOException e) {
+			Lib.assertNotReached("could not open trace file " + file);
+		    }
+		}
+	    });
+
+	mapping.order(ByteOrder.LITTLE_ENDIAN);
+	mapping.putInt(0, magic);
+	mapping.putInt(4, recordSize);
+	mapping.putInt(8, segmentSize);
+	mapping.putInt(12, numSegments);
+	mapping.putLong(16, 0);
+
+	// the kernel may halt, or Nachos may die, anywhere
+	privilege.addExitNotificationHandler(new Runnable() {
+		public void run() { close(); }
+	    });
+    }
+
+    /**
+     * Record one instruction.
+     *
+     * @param	pc		the virtual address of the instruction.
+     * @param	instruction	the instruction word, or 0 if it could not be
+     *				fetched.
+     * @param	vaddr		the effective address, or the bad virtual
+     *				address if an exception occurred, or 0.
+     * @param	cause		the exception that occurred, or -1 if none.
+     */
+    void record(int pc, int instruction, int vaddr, int cause) {
+	if (segment == null || !segment.hasRemaining())
+	    nextSegment();
+
+	segment.putInt(pc);
+	segment.putInt(instruction);
+	segment.putInt(vaddr);
+	segment.putInt(cause);
+	numRecords++;
+    }
+
+    /**
+     * Start filling the next segment. If the ring is full, wrap around to the
+     * oldest one if <tt>Processor.traceWrap</tt> is set, and otherwise close
+     * the file and fail.
+     */
+    private void nextSegment() {
+	mapping.putLong(16, numRecords);
+
+	long segments = numRecords / (segmentSize / recordSize);
+	if (segments == numSegments && !wrap) {
+	    close();
+	    Lib.assertNotReached("trace file " + file + " is full after "
+				 + numRecords + " records; raise "
+				 + "Processor.traceSegments or "
+				 + "Processor.traceSegmentSize, or set "
+				 + "Processor.traceWrap to keep only the end");
+	}
+
+	int index = (int) (segments % numSegments);
+
+	ByteBuffer buf = mapping.duplicate();
+	buf.position(headerSize + index * segmentSize);
+	buf.limit(headerSize + (index+1) * segmentSize);
+	segment = buf.slice().order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    /**
+     * Write the final record count to the header and close the file. The
+     * mapping stays valid until it is garbage collected, so this is safe to
+     * call even if the processor is still recording.
+     */
+    void close() {
+	if (closed)
+	    return;
+
+	mapping.putLong(16, numRecords);
+	closed = true;
+
+	try {
+	    channel.close();
+	}
+	catch (IOException e) {
+	}
+    }
+
+    /** "NTRC" */
+    static final int magic = 0x4E545243;
+    /** The size of the file header, in bytes. */
+    static final int headerSize = 24;
+    /** The size of each record, in bytes. */
+    static final int recordSize = 16;
+
+    private File file;
+    private boolean wrap;
+    private FileChannel channel;
+    private ByteBuffer mapping;
+    private ByteBuffer segment = null;
+    private int segmentSize, numSegments;
+    private long numRecords = 0;
+    private boolean closed = false;
+}
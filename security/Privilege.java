@@ -147,8 +147,19 @@ public abstract class Privilege {
 	 * @param	type	a name for the type of interrupt being
 	 *			scheduled.
 	 * @param	handler	the interrupt handler to call.
+	 * @return	a handle that can be passed to <tt>cancel()</tt>.
 	 */
-	public void schedule(long when, String type, Runnable handler);
+	public long schedule(long when, String type, Runnable handler);
+
+	/**
+	 * Retract a scheduled interrupt that has not occurred yet. Handles of
+	 * interrupts that already occurred or were cancelled are ignored.
+	 *
+	 * @param	handle	the handle returned by <tt>schedule()</tt>.
+	 * @return	<tt>true</tt> if the interrupt was still pending and will
+	 *		now not occur.
+	 */
+	public boolean cancel(long handle);
 	
 	/**
 	 * Advance the simulated time.
@@ -158,6 +169,16 @@ public abstract class Privilege {
 	 *		MIPS user code.
 	 */
 	public void tick(boolean inKernelMode);
+
+	/**
+	 * Return the simulated time at which the earliest pending interrupt is
+	 * due, or <tt>Long.MAX_VALUE</tt> if no interrupts are pending. Until
+	 * that time, a user-mode <tt>tick()</tt> does nothing but advance the
+	 * clock, so the caller may account for those ticks in bulk.
+	 *
+	 * @return	the time the next interrupt is due.
+	 */
+	public long nextInterruptTime();
     }
 
     /**
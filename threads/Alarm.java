@@ -4,14 +4,23 @@ import java.util.PriorityQueue;
 
 import nachos.machine.Lib;
 import nachos.machine.Machine;
+import nachos.machine.Stats;
 
 /**
  * Uses the hardware timer to provide preemption, and to allow threads to sleep
  * until a certain time.
+ *
+ * <p>
+ * If the timer is tickless, the alarm only asks it for an interrupt when one is
+ * needed: at the earliest wake time of a sleeping thread, and at the end of the
+ * running thread's time slice if another thread is ready to run.
  */
 public class Alarm {
   private static final char dbgAlarm = 'r';
   private PriorityQueue<WaitingThread> waitQueue = new PriorityQueue<WaitingThread>();
+  private boolean tickless;
+  /** If the timer is tickless, when the running thread's time slice ends. */
+  private long sliceEnd = 0;
 
   /**
    * Allocate a new Alarm. Set the machine's timer interrupt handler to this
@@ -27,26 +36,35 @@ public class Alarm {
         timerInterrupt();
       }
     });
+    this.tickless = Machine.timer().isTickless();
   }
 
   /**
    * The timer interrupt handler. This is called by the machine's timer
-   * periodically (approximately every 500 clock ticks). Causes the current
-   * thread to yield, forcing a context switch if there is another thread that
-   * should be run.
+   * periodically (approximately every 500 clock ticks), or, if the timer is
+   * tickless, when the alarm asked for it. Causes the current thread to yield,
+   * forcing a context switch if there is another thread that should be run.
    */
   public void timerInterrupt() {
     Lib.debug(dbgAlarm, Machine.timer().getTime() + " -- Alarm.timerInterrupt(): Start");
     Machine.interrupt().disable();
     Lib.debug(dbgAlarm, Machine.timer().getTime() + " -- Alarm.timerInterrupt(): interrupts disabled");
-    while (!this.waitQueue.isEmpty() && this.waitQueue.peek().getWakeTime() > Machine.timer().getTime()) {
+    while (!this.waitQueue.isEmpty() && this.waitQueue.peek().getWakeTime() <= Machine.timer().getTime()) {
       Lib.debug(dbgAlarm, Machine.timer().getTime() + " -- Alarm.timerInterrupt(): time to wake up");
       this.waitQueue.remove().getThread().ready();
       Lib.debug(dbgAlarm, Machine.timer().getTime() + " -- Alarm.timerInterrupt(): thread awoken");
     }
+    // the scheduler may let the current thread keep running
+    boolean preempt = ThreadedKernel.scheduler.timerInterrupt();
+    if (this.tickless) {
+      // a new time slice starts now
+      this.sliceEnd = Machine.timer().getTime() + Stats.TimerTicks;
+      reprogram();
+    }
     Machine.interrupt().enable();
     Lib.debug(dbgAlarm, Machine.timer().getTime() + " -- Alarm.timerInterrupt(): interrupts enabled");
-    KThread.currentThread().yield();
+    if (preempt && (!this.tickless || KThread.threadsReady()))
+      KThread.preempt();
     Lib.debug(dbgAlarm, Machine.timer().getTime() + " -- Alarm.timerInterrupt(): End");
   }
 
@@ -70,9 +88,41 @@ public class Alarm {
     long wakeTime = Machine.timer().getTime() + x;
     this.waitQueue.add(new WaitingThread(wakeTime, KThread.currentThread()));
     Lib.debug(dbgAlarm, Machine.timer().getTime() + " -- Alarm.waitUntil(): current thread added to queue");
+    if (this.tickless)
+      reprogram();
     KThread.sleep();
     Machine.interrupt().enable();
     Lib.debug(dbgAlarm, Machine.timer().getTime() + " -- Alarm.waitUntil(): interrupts enabled");
     Lib.debug(dbgAlarm, Machine.timer().getTime() + " -- Alarm.waitUntil(): End");
   }
+
+  /**
+   * Called by <tt>KThread.ready()</tt> whenever a thread is added to the ready
+   * queue. If the timer is tickless, makes sure the running thread's time
+   * slice will end. Interrupts must be disabled.
+   */
+  void threadReady() {
+    if (!this.tickless)
+      return;
+
+    long now = Machine.timer().getTime();
+    if (this.sliceEnd <= now)
+      this.sliceEnd = now + Stats.TimerTicks;
+    reprogram();
+  }
+
+  /**
+   * Ask the tickless timer for the next interrupt the kernel needs: the
+   * earliest wake time, or the end of the time slice if another thread is
+   * waiting to run, whichever comes first.
+   */
+  private void reprogram() {
+    long next = Long.MAX_VALUE;
+    if (!this.waitQueue.isEmpty())
+      next = this.waitQueue.peek().getWakeTime();
+    if (KThread.threadsReady())
+      next = Math.min(next, this.sliceEnd);
+
+    Machine.timer().setNextInterrupt(next);
+  }
 }
@@ -0,0 +1,439 @@
+package nachos.threads;
+
+import nachos.machine.Config;
+import nachos.machine.Lib;
+import nachos.machine.Machine;
+import nachos.machine.Processor;
+import nachos.machine.TranslationEntry;
+
+/**
+ * A kernel that measures the cost of the thread primitives. For each of
+ * <tt>KThread.yield()</tt>, <tt>Semaphore</tt>, <tt>Lock</tt>,
+ * <tt>Condition</tt>, <tt>Condition2</tt>, <tt>Communicator</tt>,
+ * <tt>SynchList</tt>, and <tt>KThread.fork()</tt>, it runs a small workload
+ * once to warm up the JVM, then again to measure it. It prints the average
+ * host time and heap allocation per operation. If there is a processor, it
+ * also measures a user loop that page faults on every load.
+ *
+ * <p>
+ * All primitives use the scheduler named by <tt>ThreadedKernel.scheduler</tt>;
+ * to compare schedulers, run the kernel once with each. The number of
+ * operations in each measurement is <tt>BenchmarkKernel.iterations</tt>.
+ */
+public class BenchmarkKernel extends ThreadedKernel {
+  /**
+   * Allocate a new benchmark kernel.
+   */
+  public BenchmarkKernel() {
+    super();
+  }
+
+  /**
+   * The benchmarks take the place of the self tests, so this does nothing.
+   */
+  @Override
+  public void selfTest() {
+  }
+
+  /**
+   * Run every benchmark, and print the results.
+   */
+  @Override
+  public void run() {
+    int iterations = Config.getInteger("BenchmarkKernel.iterations", 20000);
+    Lib.assertTrue(iterations > 0, "bad value for BenchmarkKernel.iterations");
+
+    System.out.println("*** benchmarking " + scheduler.getClass().getName()
+        + ", " + iterations + " operations each");
+
+    for (int pass = 0; pass < 2; pass++) {
+      // the first pass only warms up the JVM
+      boolean report = (pass == 1);
+      int n = report ? iterations : Math.max(1, iterations / 10);
+
+      benchmarkYield(n, report);
+      benchmarkSemaphore(n, report);
+      benchmarkLock(n, report);
+      benchmarkContendedLock(n, report);
+      benchmarkCondition(n, report);
+      benchmarkCondition2(n, report);
+      benchmarkCommunicator(n, report);
+      benchmarkSynchList(n, report);
+      benchmarkFork(n, report);
+      benchmarkPageFault(n, report);
+    }
+  }
+
+  /**
+   * Two threads yield to each other. One operation is one yield.
+   */
+  private void benchmarkYield(final int n, boolean report) {
+    Runnable yielder = new Runnable() {
+      @Override
+      public void run() {
+        for (int i = 0; i < n / 2; i++) {
+          KThread.yield();
+        }
+      }
+    };
+
+    measure("KThread.yield", n / 2 * 2, report, yielder, yielder);
+  }
+
+  /**
+   * Two threads pass control back and forth with a pair of semaphores. One
+   * operation is one <tt>V()</tt> and the <tt>P()</tt> it wakes up.
+   */
+  private void benchmarkSemaphore(final int n, boolean report) {
+    final Semaphore ping = new Semaphore(0);
+    final Semaphore pong = new Semaphore(0);
+
+    measure("Semaphore.P/V", n / 2 * 2, report, new Runnable() {
+      @Override
+      public void run() {
+        for (int i = 0; i < n / 2; i++) {
+          ping.V();
+          pong.P();
+        }
+      }
+    }, new Runnable() {
+      @Override
+      public void run() {
+        for (int i = 0; i < n / 2; i++) {
+          ping.P();
+          pong.V();
+        }
+      }
+    });
+  }
+
+  /**
+   * One thread acquires and releases a free lock. One operation is one
+   * <tt>acquire()</tt> and <tt>release()</tt>.
+   */
+  private void benchmarkLock(final int n, boolean report) {
+    final Lock lock = new Lock();
+
+    measure("Lock.acquire/release", n, report, new Runnable() {
+      @Override
+      public void run() {
+        for (int i = 0; i < n; i++) {
+          lock.acquire();
+          lock.release();
+        }
+      }
+    });
+  }
+
+  /**
+   * Two threads each yield while holding a lock, so every
+   * <tt>acquire()</tt> blocks and every <tt>release()</tt> hands the lock
+   * over. One operation is one <tt>acquire()</tt> and <tt>release()</tt>.
+   */
+  private void benchmarkContendedLock(final int n, boolean report) {
+    final Lock lock = new Lock();
+    Runnable contender = new Runnable() {
+      @Override
+      public void run() {
+        for (int i = 0; i < n / 2; i++) {
+          lock.acquire();
+          KThread.yield();
+          lock.release();
+        }
+      }
+    };
+
+    measure("Lock (contended)", n / 2 * 2, report, contender, contender);
+  }
+
+  /**
+   * Two threads take turns under a lock, each waking the other and sleeping
+   * on a <tt>Condition</tt> until its turn comes. One operation is one turn.
+   */
+  private void benchmarkCondition(int n, boolean report) {
+    final Lock lock = new Lock();
+    final Condition condition = new Condition(lock);
+    TakeTurns turns = new TakeTurns(lock, n / 2) {
+      @Override
+      void sleep() {
+        condition.sleep();
+      }
+
+      @Override
+      void wake() {
+        condition.wake();
+      }
+    };
+
+    measure("Condition.sleep/wake", n / 2 * 2, report, turns.player(0),
+        turns.player(1));
+  }
+
+  /**
+   * The same as <tt>benchmarkCondition()</tt>, with a <tt>Condition2</tt>.
+   */
+  private void benchmarkCondition2(int n, boolean report) {
+    final Lock lock = new Lock();
+    final Condition2 condition = new Condition2(lock);
+    TakeTurns turns = new TakeTurns(lock, n / 2) {
+      @Override
+      void sleep() {
+        condition.sleep();
+      }
+
+      @Override
+      void wake() {
+        condition.wake();
+      }
+    };
+
+    measure("Condition2.sleep/wake", n / 2 * 2, report, turns.player(0),
+        turns.player(1));
+  }
+
+  /**
+   * One thread speaks and another listens. One operation is one word passed.
+   */
+  private void benchmarkCommunicator(final int n, boolean report) {
+    final Communicator communicator = new Communicator();
+
+    measure("Communicator.speak/listen", n, report, new Runnable() {
+      @Override
+      public void run() {
+        for (int i = 0; i < n; i++) {
+          communicator.speak(i);
+        }
+      }
+    }, new Runnable() {
+      @Override
+      public void run() {
+        for (int i = 0; i < n; i++) {
+          Lib.assertTrue(communicator.listen() == i);
+        }
+      }
+    });
+  }
+
+  /**
+   * Two threads pass an object back and forth through a pair of
+   * <tt>SynchList</tt>s. One operation is one <tt>add()</tt> and the
+   * <tt>removeFirst()</tt> that gets it.
+   */
+  private void benchmarkSynchList(final int n, boolean report) {
+    final SynchList ping = new SynchList();
+    final SynchList pong = new SynchList();
+    final Object ball = new Object();
+
+    measure("SynchList.add/removeFirst", n / 2 * 2, report, new Runnable() {
+      @Override
+      public void run() {
+        for (int i = 0; i < n / 2; i++) {
+          ping.add(ball);
+          pong.removeFirst();
+        }
+      }
+    }, new Runnable() {
+      @Override
+      public void run() {
+        for (int i = 0; i < n / 2; i++) {
+          pong.add(ping.removeFirst());
+        }
+      }
+    });
+  }
+
+  /**
+   * One thread forks many short-lived threads, a batch at a time, and waits
+   * for each batch to finish. One operation is one thread forked, run, and
+   * finished. The batches keep the number of live threads under
+   * <tt>TCB.maxThreads</tt>.
+   */
+  private void benchmarkFork(final int n, boolean report) {
+    final int batch = 16;
+
+    measure("KThread.fork", n, report, new Runnable() {
+      @Override
+      public void run() {
+        final Semaphore finished = new Semaphore(0);
+        Runnable child = new Runnable() {
+          @Override
+          public void run() {
+            finished.V();
+          }
+        };
+
+        for (int i = 0; i < n; i += batch) {
+          int forked = Math.min(batch, n - i);
+          for (int j = 0; j < forked; j++) {
+            new KThread(child).setName("child").fork();
+          }
+          for (int j = 0; j < forked; j++) {
+            finished.P();
+          }
+        }
+      }
+    });
+  }
+
+  /**
+   * A user loop loads a word from the next of 64 pages on every iteration,
+   * and only the page holding the loop and one other can be mapped at once,
+   * so every load of another page faults, and the exception handler maps it
+   * in place of the last one. This is the same exception path a TLB miss
+   * takes, but the processor only has a TLB under a <tt>VMKernel</tt>, so it
+   * is driven through a page table. One operation is one page fault, with the
+   * few instructions up to the next one. Skipped unless there is a processor.
+   */
+  private void benchmarkPageFault(final int n, boolean report) {
+    final Processor processor = Machine.processor();
+    if (processor == null) {
+      if (report) {
+        System.out.println("*** page fault: skipped, needs a processor");
+      }
+      return;
+    }
+
+    final int pages = 64;
+    final int numPhysPages = processor.getNumPhysPages();
+
+    /* At address 0:
+     *
+     *   loop: lw    $9, 0($8)
+     *         addiu $8, $8, pageSize
+     *         and   $8, $8, $10
+     *         j     loop
+     *         nop
+     */
+    int[] loop = { 0x8D090000, 0x25080000 | Processor.pageSize, 0x010A4024,
+        0x08000000, 0x00000000 };
+    for (int i = 0; i < loop.length; i++) {
+      Lib.bytesFromInt(processor.getMemory(), i * 4, loop[i]);
+    }
+
+    final TranslationEntry[] pageTable = new TranslationEntry[pages];
+    for (int vpn = 0; vpn < pages; vpn++) {
+      pageTable[vpn] = new TranslationEntry(vpn, vpn % numPhysPages,
+          vpn == 0, true, false, false);
+    }
+
+    processor.setPageTable(pageTable);
+    processor.writeRegister(Processor.regPC, 0);
+    processor.writeRegister(8, Processor.pageSize);
+    processor.writeRegister(10, pages * Processor.pageSize - 1);
+
+    final Semaphore stopped = new Semaphore(0);
+    processor.setExceptionHandler(new Runnable() {
+      @Override
+      public void run() {
+        Lib.assertTrue(processor.readRegister(Processor.regCause)
+            == Processor.exceptionPageFault);
+
+        int vpn = Processor.pageFromAddress(
+            processor.readRegister(Processor.regBadVAddr));
+        pageTable[mapped].valid = false;
+        pageTable[vpn].valid = true;
+        mapped = vpn;
+
+        if (++faults == n) {
+          stopped.V();
+          KThread.finish();
+        }
+      }
+
+      private int mapped = 1;
+      private int faults = 0;
+    });
+
+    measure("page fault", n, report, new Runnable() {
+      @Override
+      public void run() {
+        new KThread(new Runnable() {
+          @Override
+          public void run() {
+            processor.run();
+          }
+        }).setName("page fault loop").fork();
+
+        stopped.P();
+      }
+    });
+  }
+
+  /**
+   * Two players take turns, guarded by a lock and a condition variable that
+   * subclasses supply.
+   */
+  private abstract static class TakeTurns {
+    TakeTurns(Lock lock, int rounds) {
+      this.lock = lock;
+      this.rounds = rounds;
+    }
+
+    abstract void sleep();
+
+    abstract void wake();
+
+    Runnable player(final int which) {
+      return new Runnable() {
+        @Override
+        public void run() {
+          lock.acquire();
+          for (int i = 0; i < rounds; i++) {
+            while (turn != which) {
+              sleep();
+            }
+            turn = 1 - which;
+            wake();
+          }
+          lock.release();
+        }
+      };
+    }
+
+    private Lock lock;
+    private int rounds;
+    private int turn = 0;
+  }
+
+  /**
+   * Fork a thread for each workload, and wait for them all to finish. If
+   * <tt>report</tt> is set, print the host time and heap allocation per
+   * operation.
+   */
+  private void measure(String name, int ops, boolean report,
+      Runnable... workloads) {
+    final Semaphore done = new Semaphore(0);
+
+    long startBytes = Machine.allocatedBytes();
+    long startTime = System.nanoTime();
+
+    for (int i = 0; i < workloads.length; i++) {
+      final Runnable workload = workloads[i];
+      new KThread(new Runnable() {
+        @Override
+        public void run() {
+          workload.run();
+          done.V();
+        }
+      }).setName(name + " " + i).fork();
+    }
+    for (int i = 0; i < workloads.length; i++) {
+      done.P();
+    }
+
+    long elapsed = System.nanoTime() - startTime;
+    long endBytes = Machine.allocatedBytes();
+
+    if (!report) {
+      return;
+    }
+
+    String allocated = "unknown";
+    if (startBytes >= 0 && endBytes >= startBytes) {
+      allocated = ((endBytes - startBytes) / ops) + " bytes/op";
+    }
+
+    System.out.println("*** " + name + ": " + (elapsed / ops) + " ns/op, "
+        + allocated);
+  }
+}
@@ -0,0 +1,319 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.TreeSet;
+import java.util.Comparator;
+import java.util.Iterator;
+
+/**
+ * A fair scheduler, in the style of the Linux completely fair scheduler. Each
+ * thread has a virtual runtime, which grows as the thread runs, and the next
+ * thread to run is always the waiting thread with the smallest virtual
+ * runtime. Threads that have waited equally long are run in FIFO order.
+ *
+ * <p>
+ * Threads are charged for the ticks they actually use, from when they start
+ * running (<tt>threadRunning()</tt>) to when they stop (<tt>threadStopped()</tt>)
+ * or the next timer interrupt, whichever comes first. Each thread has a
+ * priority, with the same range as in <tt>PriorityScheduler</tt>, that sets its
+ * weight: each step of priority is worth 25% more processor time, and a
+ * thread's virtual runtime grows in inverse proportion to its weight. So two
+ * CPU-bound threads of equal priority share the processor equally, however
+ * long or short their bursts, and a thread that blocks often is run as soon as
+ * it wakes.
+ *
+ * <p>
+ * A thread that is woken, or forked, starts no further back than
+ * <tt>FairScheduler.granularity</tt> ticks behind the least virtual runtime
+ * seen so far, so a thread that slept for a long time cannot monopolize the
+ * processor when it wakes. At each timer interrupt, the current thread yields
+ * if it is more than that many ticks ahead of the first ready thread.
+ *
+ * <p>
+ * Every queue is ordered by virtual runtime, and kept in a red-black tree, so
+ * adding and removing a thread take O(log <i>n</i>) time.
+ */
+public class FairScheduler extends Scheduler {
+    /**
+     * Allocate a new fair scheduler.
+     */
+    public FairScheduler() {
+	int ticks = Config.getInteger("FairScheduler.granularity",
+				      Stats.TimerTicks);
+	Lib.assertTrue(ticks > 0, "bad value for FairScheduler.granularity");
+
+	granularity = (long) ticks << 10;
+    }
+
+    /**
+     * Allocate a new thread queue.
+     *
+     * @param	transferPriority	ignored. Threads donate nothing to the
+     *					owner of a queue.
+     * @return	a new thread queue.
+     */
+    public ThreadQueue newThreadQueue(boolean transferPriority) {
+	return new FairQueue();
+    }
+
+    /**
+     * Allocate the ready queue, whose first thread the current thread is
+     * compared with at each timer interrupt.
+     *
+     * @return	a new thread queue, to be used as the ready queue.
+     */
+    public ThreadQueue newReadyQueue() {
+	readyQueue = new FairQueue();
+	return readyQueue;
+    }
+
+    public int getPriority(KThread thread) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	return getThreadState(thread).priority;
+    }
+
+    public int getEffectivePriority(KThread thread) {
+	return getPriority(thread);
+    }
+
+    /**
+     * Set the priority of the specified thread, and so its weight. A waiting
+     * thread keeps its place; only the rate at which it is charged changes.
+     *
+     * @param	thread		the thread whose priority to set.
+     * @param	priority	the new priority.
+     */
+    public void setPriority(KThread thread, int priority) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	Lib.assertTrue(priority >= PriorityScheduler.priorityMinimum &&
+		       priority <= PriorityScheduler.priorityMaximum);
+
+	ThreadState state = getThreadState(thread);
+	charge(state);
+	state.priority = priority;
+    }
+
+    public boolean increasePriority() {
+	boolean intStatus = Machine.interrupt().disable();
+
+	KThread thread = KThread.currentThread();
+	int priority = getPriority(thread);
+	boolean changed = (priority < PriorityScheduler.priorityMaximum);
+	if (changed)
+	    setPriority(thread, priority+1);
+
+	Machine.interrupt().restore(intStatus);
+	return changed;
+    }
+
+    public boolean decreasePriority() {
+	boolean intStatus = Machine.interrupt().disable();
+
+	KThread thread = KThread.currentThread();
+	int priority = getPriority(thread);
+	boolean changed = (priority > PriorityScheduler.priorityMinimum);
+	if (changed)
+	    setPriority(thread, priority-1);
+
+	Machine.interrupt().restore(intStatus);
+	return changed;
+    }
+
+    /**
+     * Charge the current thread for the ticks it has used, and decide whether
+     * it has got far enough ahead of the first ready thread to yield to it.
+     *
+     * @return	<tt>true</tt> if the current thread should yield.
+     */
+    public boolean timerInterrupt() {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	ThreadState state = getThreadState(KThread.currentThread());
+	charge(state);
+
+	if (readyQueue == null || readyQueue.tree.isEmpty())
+	    return false;
+
+	return state.vruntime > readyQueue.tree.first().vruntime + granularity;
+    }
+
+    public void threadRunning(KThread thread) {
+	getThreadState(thread).runStart = Machine.timer().getTime();
+    }
+
+    public void threadStopped(KThread thread) {
+	ThreadState state = getThreadState(thread);
+	charge(state);
+	state.runStart = -1;
+    }
+
+    /**
+     * Add the ticks the specified thread has run since it was last charged to
+     * its virtual runtime, scaled by its weight. Does nothing if the thread is
+     * not running, or is waiting in a queue, which it can only be if it is
+     * about to stop running and no time has passed since it was added.
+     *
+     * @param	state	the scheduling state of the thread to charge.
+     */
+    private void charge(ThreadState state) {
+	if (state.runStart < 0 || state.queue != null)
+	    return;
+
+	long now = Machine.timer().getTime();
+	state.vruntime += ((now - state.runStart) << 20) / weights[state.priority];
+	state.runStart = now;
+    }
+
+    /**
+     * Return the scheduling state of the specified thread.
+     *
+     * @param	thread	the thread whose scheduling state to return.
+     * @return	the scheduling state of the specified thread.
+     */
+    private ThreadState getThreadState(KThread thread) {
+	if (thread.schedulingState == null)
+	    thread.schedulingState = new ThreadState(thread, minVruntime);
+
+	return (ThreadState) thread.schedulingState;
+    }
+
+    private class FairQueue extends ThreadQueue {
+	/**
+	 * Add a thread to the queue. The current thread is charged first, so
+	 * its place reflects all the time it has used; a thread being woken
+	 * is moved up to no more than the granularity behind the least
+	 * virtual runtime.
+	 *
+	 * @param	thread	the thread to add to the queue.
+	 */
+	public void waitForAccess(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    ThreadState state = getThreadState(thread);
+	    Lib.assertTrue(state.queue == null);
+
+	    // a thread other than the current one is being woken or forked
+	    if (thread == KThread.currentThread())
+		charge(state);
+	    else
+		state.vruntime = Math.max(state.vruntime,
+					  minVruntime - granularity);
+
+	    state.sequence = nextSequence++;
+	    state.queue = this;
+	    tree.add(state);
+	}
+
+	/**
+	 * Remove the thread with the smallest virtual runtime.
+	 *
+	 * @return	the next thread, or <tt>null</tt> if the queue is empty.
+	 */
+	public KThread nextThread() {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    ThreadState state = tree.pollFirst();
+	    if (state == null)
+		return null;
+
+	    state.queue = null;
+	    if (this == readyQueue)
+		minVruntime = Math.max(minVruntime, state.vruntime);
+
+	    // picks are frequent, so don't build the message unless needed
+	    if (Lib.test(dbgFair)) {
+		Lib.debug(dbgFair, "Picked " + state.thread + " at " +
+			  (state.vruntime >> 10));
+	    }
+
+	    return state.thread;
+	}
+
+	/**
+	 * The specified thread has received access, without using
+	 * <tt>waitForAccess()</tt> or <tt>nextThread()</tt>. Assert that no
+	 * threads are waiting for access.
+	 */
+	public void acquire(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    Lib.assertTrue(tree.isEmpty());
+	}
+
+	/**
+	 * Print out the contents of the queue, with each thread's virtual
+	 * runtime in ticks.
+	 */
+	public void print() {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    for (Iterator<ThreadState> i=tree.iterator(); i.hasNext(); ) {
+		ThreadState state = i.next();
+		System.out.print(state.thread + "(" + (state.vruntime >> 10) +
+				 ") ");
+	    }
+	}
+
+	private TreeSet<ThreadState> tree = new TreeSet<ThreadState>(order);
+    }
+
+    /**
+     * The scheduling state of a thread. A thread's virtual runtime is in
+     * units of 1/1024 of a tick at the default priority.
+     */
+    private static class ThreadState {
+	ThreadState(KThread thread, long vruntime) {
+	    this.thread = thread;
+	    this.vruntime = vruntime;
+	}
+
+	KThread thread;
+	int priority = PriorityScheduler.priorityDefault;
+	long vruntime;
+	/** Breaks ties in virtual runtime, so that they are FIFO. */
+	long sequence;
+	/** When the thread was last charged, or -1 if it is not running. */
+	long runStart = -1;
+	/** The queue the thread is waiting in, or <tt>null</tt>. */
+	FairQueue queue = null;
+    }
+
+    /** Orders thread states by virtual runtime, then by sequence. */
+    private static final Comparator<ThreadState> order =
+	new Comparator<ThreadState>() {
+	    public int compare(ThreadState a, ThreadState b) {
+		if (a.vruntime != b.vruntime)
+		    return a.vruntime < b.vruntime ? -1 : 1;
+		else
+		    return Long.compare(a.sequence, b.sequence);
+	    }
+	};
+
+    /**
+     * The weight of each priority: 1024 at the default priority, and 25% more
+     * for each step up.
+     */
+    private static final long[] weights =
+	new long[PriorityScheduler.priorityMaximum+1];
+
+    static {
+	for (int p=PriorityScheduler.priorityMinimum;
+	     p<=PriorityScheduler.priorityMaximum; p++) {
+	    weights[p] = Math.round(1024 * Math.pow(1.25,
+						    p - PriorityScheduler.priorityDefault));
+	}
+    }
+
+    /** The granularity, in virtual runtime units. */
+    private long granularity;
+
+    private FairQueue readyQueue = null;
+    /** The least virtual runtime of a thread picked to run so far. */
+    private long minVruntime = 0;
+    private long nextSequence = 0;
+
+    private static final char dbgFair = 'f';
+}
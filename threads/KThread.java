@@ -2,6 +2,7 @@ package nachos.threads;
 
 import java.util.LinkedList;
 
+import nachos.machine.Config;
 import nachos.machine.Lib;
 import nachos.machine.Machine;
 import nachos.machine.TCB;
@@ -64,7 +65,7 @@ public class KThread {
     if (currentThread != null)
       this.tcb = new TCB();
     else {
-      readyQueue = ThreadedKernel.scheduler.newThreadQueue(false);
+      readyQueue = ThreadedKernel.scheduler.newReadyQueue();
       readyQueue.acquire(this);
 
       currentThread = this;
@@ -72,9 +73,15 @@ public class KThread {
       this.name = "main";
       restoreState();
 
+      if (Config.getBoolean("KThread.printStatistics", false))
+        allThreads = new LinkedList<KThread>();
+
       createIdleThread();
     }
     this.JoinedThreads = new LinkedList<KThread>();
+
+    if (allThreads != null)
+      allThreads.add(this);
   }
 
   /**
@@ -123,6 +130,34 @@ public class KThread {
     return this.name;
   }
 
+  /**
+   * Set the ready queue partition this thread should preferably wait in. This
+   * is only a hint: schedulers with a partitioned ready queue, such as
+   * <tt>WorkStealingScheduler</tt>, add the thread to that partition when it
+   * becomes ready, but another partition may still take it, and other
+   * schedulers ignore it.
+   *
+   * @param partition
+   *          the partition to queue this thread in, or -1 for no preference.
+   * @return this thread.
+   */
+  public KThread setAffinity(int partition) {
+    Lib.assertTrue(partition >= -1);
+
+    this.affinity = partition;
+    return this;
+  }
+
+  /**
+   * Get the ready queue partition this thread should preferably wait in.
+   *
+   * @return the partition set by <tt>setAffinity()</tt>, or -1 for no
+   *         preference.
+   */
+  public int getAffinity() {
+    return this.affinity;
+  }
+
   /**
    * Get the full name of this thread. This includes its name along with its
    * numerical ID. This name is used for debugging purposes only.
@@ -218,6 +253,7 @@ public class KThread {
     Lib.assertTrue(toBeDestroyed == null);
     toBeDestroyed = currentThread;
 
+    currentThread.chargeStatus();
     currentThread.status = statusFinished;
 
     sleep();
@@ -253,6 +289,16 @@ public class KThread {
     Machine.interrupt().restore(intStatus);
   }
 
+  /**
+   * Relinquish the CPU because the current thread's time slice is over. The
+   * same as <tt>yield()</tt>, except that the switch is counted as involuntary.
+   * Called by the alarm.
+   */
+  static void preempt() {
+    currentThread.preempted = true;
+    KThread.yield();
+  }
+
   /**
    * Relinquish the CPU, because the current thread has either finished or it is
    * blocked. This thread must be the current thread.
@@ -269,6 +315,7 @@ public class KThread {
 
     Lib.assertTrue(Machine.interrupt().disabled());
 
+    currentThread.chargeStatus();
     if (currentThread.status != statusFinished)
       currentThread.status = statusBlocked;
 
@@ -285,9 +332,16 @@ public class KThread {
     Lib.assertTrue(Machine.interrupt().disabled());
     Lib.assertTrue(this.status != statusReady);
 
+    chargeStatus();
     this.status = statusReady;
-    if (this != idleThread)
+    if (this != idleThread) {
       readyQueue.waitForAccess(this);
+      numReady++;
+
+      // a tickless timer must now end the running thread's time slice
+      if (ThreadedKernel.alarm != null)
+        ThreadedKernel.alarm.threadReady();
+    }
 
     Machine.autoGrader().readyThread(this);
   }
@@ -334,14 +388,40 @@ public class KThread {
     idleThread.fork();
   }
 
+  /**
+   * Tests whether any thread other than the current one is waiting to run.
+   * The idle thread doesn't count.
+   *
+   * @return <tt>true</tt> if the ready queue is not empty.
+   */
+  static boolean threadsReady() {
+    return numReady > 0;
+  }
+
   /**
    * Determine the next thread to run, then dispatch the CPU to the thread using
    * <tt>run()</tt>.
    */
   private static void runNextThread() {
-    KThread nextThread = readyQueue.nextThread();
-    if (nextThread == null)
+    KThread nextThread;
+    if (allThreads != null) {
+      // only time the decision when the statistics will be printed
+      long startTime = System.nanoTime();
+      nextThread = readyQueue.nextThread();
+      decisionTime += System.nanoTime() - startTime;
+    } else {
+      nextThread = readyQueue.nextThread();
+    }
+    numDecisions++;
+
+    if (nextThread == null) {
+      // nothing can happen until the next interrupt, so skip ahead to it
+      Machine.interrupt().idle();
       nextThread = idleThread;
+    }
+    else {
+      numReady--;
+    }
 
     nextThread.run();
   }
@@ -374,7 +454,19 @@ public class KThread {
 
     Lib.debug(dbgThread, "Switching from: " + currentThread.toString() + " to: " + toString());
 
+    if (currentThread.status != statusFinished) {
+      if (currentThread.preempted)
+        currentThread.involuntarySwitches++;
+      else
+        currentThread.voluntarySwitches++;
+    }
+    currentThread.preempted = false;
+
+    // the time this thread spent on the ready queue ends here
+    chargeStatus();
+
     currentThread = this;
+    numSwitches++;
 
     this.tcb.contextSwitch();
 
@@ -393,6 +485,7 @@ public class KThread {
     Lib.assertTrue(this.tcb == TCB.currentTCB());
 
     Machine.autoGrader().runningThread(this);
+    ThreadedKernel.scheduler.threadRunning(this);
 
     this.status = statusRunning;
 
@@ -404,12 +497,138 @@ public class KThread {
   }
 
   /**
-   * Prepare this thread to give up the processor. Kernel threads do not need to
-   * do anything here.
+   * Prepare this thread to give up the processor. Kernel threads only tell the
+   * scheduler.
    */
   protected void saveState() {
     Lib.assertTrue(Machine.interrupt().disabled());
     Lib.assertTrue(this == currentThread);
+
+    ThreadedKernel.scheduler.threadStopped(this);
+  }
+
+  /**
+   * Add the ticks since this thread's status last changed to the time it has
+   * spent in that status. Called just before the status changes.
+   */
+  private void chargeStatus() {
+    long now = Machine.timer().getTime();
+    long ticks = now - this.statusTime;
+    this.statusTime = now;
+
+    switch (this.status) {
+    case statusRunning:
+      this.runTicks += ticks;
+      break;
+    case statusReady:
+      this.readyTicks += ticks;
+      break;
+    case statusBlocked:
+      this.blockedTicks += ticks;
+      break;
+    default:
+      break;
+    }
+  }
+
+  /**
+   * Return the ticks since this thread's status last changed, if it is in the
+   * specified status, or 0 otherwise.
+   */
+  private long ticksInStatus(int status) {
+    if (this.status != status)
+      return 0;
+
+    return Machine.timer().getTime() - this.statusTime;
+  }
+
+  /**
+   * Get the number of ticks this thread has spent running.
+   *
+   * @return the ticks this thread has run.
+   */
+  public long getRunTicks() {
+    return this.runTicks + ticksInStatus(statusRunning);
+  }
+
+  /**
+   * Get the number of ticks this thread has spent on the ready queue, waiting
+   * to run.
+   *
+   * @return the ticks this thread has been ready.
+   */
+  public long getReadyTicks() {
+    return this.readyTicks + ticksInStatus(statusReady);
+  }
+
+  /**
+   * Get the number of ticks this thread has spent blocked.
+   *
+   * @return the ticks this thread has been blocked.
+   */
+  public long getBlockedTicks() {
+    return this.blockedTicks + ticksInStatus(statusBlocked);
+  }
+
+  /**
+   * Get the number of times this thread has given up the CPU by yielding or
+   * blocking.
+   *
+   * @return the number of voluntary context switches.
+   */
+  public int getVoluntarySwitches() {
+    return this.voluntarySwitches;
+  }
+
+  /**
+   * Get the number of times this thread has been preempted at the end of its
+   * time slice.
+   *
+   * @return the number of involuntary context switches.
+   */
+  public int getInvoluntarySwitches() {
+    return this.involuntarySwitches;
+  }
+
+  /**
+   * Get the number of times the scheduler has chosen the next thread to run.
+   *
+   * @return the number of scheduling decisions.
+   */
+  public static long getNumDecisions() {
+    return numDecisions;
+  }
+
+  /**
+   * Get the total host time the scheduler has spent choosing the next thread
+   * to run, in <tt>readyQueue.nextThread()</tt>. Only measured when
+   * <tt>KThread.printStatistics</tt> is set; otherwise always 0.
+   *
+   * @return the time spent in scheduling decisions, in nanoseconds.
+   */
+  public static long getDecisionTime() {
+    return decisionTime;
+  }
+
+  /**
+   * If <tt>KThread.printStatistics</tt> is set, print the accounting of every
+   * thread created, and the average time taken by a scheduling decision.
+   */
+  public static void printStatistics() {
+    if (allThreads == null) {
+      return;
+    }
+
+    System.out.println("Threads (ticks running, ready, blocked; "
+        + "switches voluntary, involuntary):");
+    for (KThread thread : allThreads) {
+      System.out.println("    " + thread + ": " + thread.getRunTicks() + ", "
+          + thread.getReadyTicks() + ", " + thread.getBlockedTicks() + "; "
+          + thread.voluntarySwitches + ", " + thread.involuntarySwitches);
+    }
+
+    System.out.println("Scheduler: " + numDecisions + " decisions, "
+        + (numDecisions > 0 ? decisionTime / numDecisions : 0) + " ns each");
   }
 
   private static class PingTest implements Runnable {
@@ -428,6 +647,52 @@ public class KThread {
     private int which;
   }
 
+  private static class SwitchTest implements Runnable {
+    SwitchTest(int rounds, Semaphore done) {
+      this.rounds = rounds;
+      this.done = done;
+    }
+
+    @Override
+    public void run() {
+      for (int i = 0; i < this.rounds; i++) {
+        KThread.yield();
+      }
+      this.done.V();
+    }
+
+    private int rounds;
+    private Semaphore done;
+  }
+
+  /**
+   * Measures the cost of a context switch. Two forked threads yield to each
+   * other the specified number of times each, while the current thread waits
+   * for them, and the average host time per switch is printed. The current
+   * thread only takes part in the first and last switches, so with
+   * <tt>TCB.singleCarrier</tt> nearly every switch measured is between two
+   * virtual threads.
+   *
+   * @param rounds the number of times each thread yields.
+   */
+  public static void switchBenchmark(int rounds) {
+    Lib.assertTrue(rounds > 0);
+
+    Semaphore done = new Semaphore(0);
+    new KThread(new SwitchTest(rounds, done)).setName("ping").fork();
+    new KThread(new SwitchTest(rounds, done)).setName("pong").fork();
+
+    long start = System.nanoTime();
+    long switches = numSwitches;
+    done.P();
+    done.P();
+    long elapsed = System.nanoTime() - start;
+
+    switches = numSwitches - switches;
+    System.out.println("*** " + switches + " context switches, "
+        + (elapsed / switches) + " ns each");
+  }
+
   /**
    * Tests whether this module is working.
    */
@@ -526,6 +791,15 @@ public class KThread {
   private String name = "(unnamed thread)";
   private Runnable target;
   private TCB tcb;
+  private int affinity = -1;
+
+  /** Ticks this thread has spent in each status, as of its last change. */
+  private long runTicks = 0, readyTicks = 0, blockedTicks = 0;
+  /** When this thread's status last changed. */
+  private long statusTime = Machine.timer().getTime();
+  private int voluntarySwitches = 0, involuntarySwitches = 0;
+  /** Set by <tt>preempt()</tt> until the switch is counted. */
+  private boolean preempted = false;
 
   /**
    * Unique identifer for this thread. Used to deterministically compare
@@ -536,6 +810,12 @@ public class KThread {
   private static int numCreated = 0;
 
   private static ThreadQueue readyQueue = null;
+  /** The number of threads in <tt>readyQueue</tt>. */
+  private static int numReady = 0;
+  private static long numSwitches = 0;
+  private static long numDecisions = 0, decisionTime = 0;
+  /** Every thread created, if <tt>KThread.printStatistics</tt> is set. */
+  private static LinkedList<KThread> allThreads = null;
   private static KThread currentThread = null;
   private static KThread toBeDestroyed = null;
   private static KThread idleThread = null;
@@ -2,10 +2,6 @@ package nachos.threads;
 
 import nachos.machine.*;
 
-import java.util.TreeSet;
-import java.util.HashSet;
-import java.util.Iterator;
-
 /**
  * A scheduler that chooses threads using a lottery.
  *
@@ -25,6 +21,13 @@ import java.util.Iterator;
  * particular, tickets must be transferred through locks, and through joins.
  * Unlike a priority scheduler, these tickets add (as opposed to just taking
  * the maximum).
+ *
+ * <p>
+ * Each queue keeps the tickets of its waiting threads in a Fenwick tree, so
+ * holding a lottery, adding or removing a thread, and changing a thread's
+ * tickets all take time logarithmic in the number of threads waiting. A
+ * thread's priority is its own number of tickets, and its effective priority
+ * adds the tickets donated to it, which are kept up to date incrementally.
  */
 public class LotteryScheduler extends PriorityScheduler {
     /**
@@ -42,7 +45,427 @@ public class LotteryScheduler extends PriorityScheduler {
      * @return	a new lottery thread queue.
      */
     public ThreadQueue newThreadQueue(boolean transferPriority) {
-	// implement me
-	return null;
+	return new LotteryQueue(transferPriority);
+    }
+
+    public void setPriority(KThread thread, int priority) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+		       
+	Lib.assertTrue(priority >= priorityMinimum &&
+		   priority <= priorityMaximum);
+	
+	getThreadState(thread).setPriority(priority);
+    }
+
+    public boolean increasePriority() {
+	boolean intStatus = Machine.interrupt().disable();
+		       
+	KThread thread = KThread.currentThread();
+
+	int priority = getPriority(thread);
+	boolean changed = (priority < priorityMaximum);
+	if (changed)
+	    setPriority(thread, priority+1);
+
+	Machine.interrupt().restore(intStatus);
+	return changed;
+    }
+
+    public boolean decreasePriority() {
+	boolean intStatus = Machine.interrupt().disable();
+		       
+	KThread thread = KThread.currentThread();
+
+	int priority = getPriority(thread);
+	boolean changed = (priority > priorityMinimum);
+	if (changed)
+	    setPriority(thread, priority-1);
+
+	Machine.interrupt().restore(intStatus);
+	return changed;
+    }
+
+    /**
+     * Test if this module is working: check that threads win lotteries in
+     * proportion to their tickets, and that tickets are added up along a
+     * chain of owners and taken back when the owners give up access. Uses a
+     * scheduler of its own, and threads that are never forked.
+     */
+    public static void selfTest() {
+	LotteryScheduler scheduler = new LotteryScheduler();
+	boolean intStatus = Machine.interrupt().disable();
+
+	KThread[] threads = new KThread[3];
+	int[] tickets = { 1, 3, 6 };
+	int[] wins = new int[3];
+
+	ThreadQueue queue = scheduler.newThreadQueue(false);
+	for (int i=0; i<3; i++) {
+	    threads[i] = new KThread().setName("lottery" + i);
+	    scheduler.setPriority(threads[i], tickets[i]);
+	    queue.waitForAccess(threads[i]);
+	}
+
+	// the winner goes back in, so every lottery has all 10 tickets
+	int rounds = 10000;
+	for (int round=0; round<rounds; round++) {
+	    KThread winner = queue.nextThread();
+	    for (int i=0; i<3; i++) {
+		if (winner == threads[i])
+		    wins[i]++;
+	    }
+	    queue.waitForAccess(winner);
+	}
+
+	for (int i=0; i<3; i++) {
+	    int expected = rounds * tickets[i] / 10;
+	    Lib.assertTrue(Math.abs(wins[i] - expected) <= rounds/50,
+			   "a thread with " + tickets[i] + " of 10 tickets won "
+			   + wins[i] + " of " + rounds + " lotteries");
+	}
+
+	for (int i=0; i<3; i++)
+	    queue.nextThread();
+
+	// owner holds a, which two threads wait for; owner waits for b
+	KThread owner = new KThread().setName("owner");
+	KThread top = new KThread().setName("top");
+	scheduler.setPriority(owner, 2);
+
+	ThreadQueue a = scheduler.newThreadQueue(true);
+	ThreadQueue b = scheduler.newThreadQueue(true);
+	a.acquire(owner);
+	b.acquire(top);
+	a.waitForAccess(threads[0]);
+	a.waitForAccess(threads[1]);
+	b.waitForAccess(owner);
+	Lib.assertTrue(scheduler.getEffectivePriority(owner) == 6 &&
+		       scheduler.getEffectivePriority(top) == 7,
+		       "tickets were not added up along the chain");
+
+	// the winner of a gets the other waiter's tickets
+	KThread winner = a.nextThread();
+	KThread loser = (winner == threads[0]) ? threads[1] : threads[0];
+	Lib.assertTrue(scheduler.getEffectivePriority(owner) == 2 &&
+		       scheduler.getEffectivePriority(top) == 3 &&
+		       scheduler.getEffectivePriority(winner) ==
+		       scheduler.getPriority(winner) +
+		       scheduler.getPriority(loser),
+		       "tickets were not taken back from the old owner");
+
+	Lib.assertTrue(b.nextThread() == owner && a.nextThread() == loser);
+	Lib.assertTrue(scheduler.getEffectivePriority(top) == 1 &&
+		       scheduler.getEffectivePriority(loser) ==
+		       scheduler.getPriority(loser),
+		       "tickets were not taken back when the wait ended");
+
+	Lib.assertTrue(a.nextThread() == null && b.nextThread() == null);
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * The default number of tickets for a new thread.
+     */
+    public static final int priorityDefault = 1;
+    /**
+     * The minimum number of tickets a thread can have.
+     */
+    public static final int priorityMinimum = 1;
+    /**
+     * The maximum number of tickets a thread can have.
+     */
+    public static final int priorityMaximum = Integer.MAX_VALUE;
+
+    /**
+     * Return the scheduling state of the specified thread.
+     *
+     * @param	thread	the thread whose scheduling state to return.
+     * @return	the scheduling state of the specified thread.
+     */
+    protected ThreadState getThreadState(KThread thread) {
+	if (thread.schedulingState == null)
+	    thread.schedulingState = new LotteryState(thread);
+
+	return (ThreadState) thread.schedulingState;
+    }
+
+    private LotteryState getLotteryState(KThread thread) {
+	return (LotteryState) getThreadState(thread);
+    }
+
+    /**
+     * A <tt>ThreadQueue</tt> that holds a lottery to choose the next thread.
+     *
+     * <p>
+     * Each waiting thread has a slot, and a Fenwick tree over the slots holds
+     * partial sums of their effective tickets. The winner of a lottery is
+     * found by descending the tree, and a thread's tickets are changed by
+     * updating the sums above its slot. Freed slots are reused, and the tree
+     * doubles in size when it is full.
+     */
+    protected class LotteryQueue extends ThreadQueue {
+	LotteryQueue(boolean transferPriority) {
+	    this.transferPriority = transferPriority;
+	}
+
+	public void waitForAccess(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+	    getLotteryState(thread).waitForAccess(this);
+	}
+
+	public void acquire(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+	    getLotteryState(thread).acquire(this);
+	}
+
+	public KThread nextThread() {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    // the owner gives up access, and with it its donation
+	    if (owner != null) {
+		owner.addTickets(-total);
+		owner = null;
+	    }
+
+	    LotteryState next = pickNextThread();
+	    if (next == null)
+		return null;
+
+	    remove(next);
+	    next.lotteryQueue = null;
+	    next.acquire(this);
+
+	    return next.thread;
+	}
+
+	/**
+	 * Hold a lottery among the waiting threads, without removing the
+	 * winner.
+	 *
+	 * @return	the winning thread, or <tt>null</tt> if no thread is
+	 *		waiting.
+	 */
+	protected LotteryState pickNextThread() {
+	    if (total == 0)
+		return null;
+
+	    long ticket = Math.min((long) (Lib.random() * total), total-1);
+
+	    // find the first slot whose prefix sum exceeds the ticket
+	    int index = 0;
+	    for (int step=Integer.highestOneBit(capacity); step>0; step>>=1) {
+		if (index+step <= capacity && tree[index+step] <= ticket) {
+		    index += step;
+		    ticket -= tree[index];
+		}
+	    }
+
+	    return slots[index+1];
+	}
+	
+	public void print() {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    for (int i=1; i<=capacity; i++) {
+		if (slots[i] != null)
+		    System.out.print(slots[i].thread + "(" + weight[i] + ") ");
+	    }
+	}
+
+	/**
+	 * Give a thread a slot, holding its effective tickets.
+	 */
+	void add(LotteryState state) {
+	    if (numFree == 0)
+		grow();
+
+	    int slot = free[--numFree];
+	    slots[slot] = state;
+	    state.slot = slot;
+	    change(slot, state.effectiveTickets);
+	}
+
+	/**
+	 * Take away a thread's slot.
+	 */
+	void remove(LotteryState state) {
+	    int slot = state.slot;
+	    change(slot, -weight[slot]);
+	    slots[slot] = null;
+	    state.slot = 0;
+	    free[numFree++] = slot;
+	}
+
+	/**
+	 * Add <tt>delta</tt> tickets to the specified slot, and pass the
+	 * change on to the owner.
+	 */
+	void change(int slot, long delta) {
+	    if (delta == 0)
+		return;
+
+	    weight[slot] += delta;
+	    for (int i=slot; i<=capacity; i+=i&-i)
+		tree[i] += delta;
+	    total += delta;
+
+	    if (owner != null)
+		owner.addTickets(delta);
+	}
+
+	/**
+	 * Double the number of slots and rebuild the tree.
+	 */
+	private void grow() {
+	    int oldCapacity = capacity;
+	    capacity = (oldCapacity == 0) ? 4 : oldCapacity*2;
+
+	    LotteryState[] newSlots = new LotteryState[capacity+1];
+	    long[] newWeight = new long[capacity+1];
+	    System.arraycopy(slots, 0, newSlots, 0, oldCapacity+1);
+	    System.arraycopy(weight, 0, newWeight, 0, oldCapacity+1);
+	    slots = newSlots;
+	    weight = newWeight;
+
+	    tree = new long[capacity+1];
+	    for (int i=1; i<=capacity; i++) {
+		tree[i] += weight[i];
+		int parent = i + (i&-i);
+		if (parent <= capacity)
+		    tree[parent] += tree[i];
+	    }
+
+	    // hand out low slots first
+	    free = new int[capacity];
+	    numFree = 0;
+	    for (int i=capacity; i>oldCapacity; i--)
+		free[numFree++] = i;
+	}
+
+	/**
+	 * <tt>true</tt> if this queue should transfer tickets from waiting
+	 * threads to the owning thread.
+	 */
+	public boolean transferPriority;
+
+	/**
+	 * The thread with access, if this queue transfers tickets.
+	 */
+	LotteryState owner = null;
+
+	/** The sum of the effective tickets of all waiting threads. */
+	private long total = 0;
+
+	private int capacity = 0;
+	/** The waiting thread in each slot, from 1 to <tt>capacity</tt>. */
+	private LotteryState[] slots = new LotteryState[1];
+	/** The effective tickets in each slot. */
+	private long[] weight = new long[1];
+	/** The Fenwick tree of partial sums of <tt>weight</tt>. */
+	private long[] tree = new long[1];
+	/** A stack of unused slots. */
+	private int[] free = new int[0];
+	private int numFree = 0;
+    }
+
+    /**
+     * The scheduling state of a thread in a lottery scheduler. The thread's
+     * priority is its own tickets; its effective tickets add the tickets of
+     * every thread waiting on a queue it owns, which are kept up to date as
+     * they change.
+     */
+    protected class LotteryState extends ThreadState {
+	/**
+	 * Allocate a new <tt>LotteryState</tt> object and associate it with
+	 * the specified thread.
+	 *
+	 * @param	thread	the thread this state belongs to.
+	 */
+	public LotteryState(KThread thread) {
+	    super(thread);
+
+	    effectiveTickets = priority;
+	}
+
+	/**
+	 * Return the effective tickets of the associated thread, or
+	 * <tt>Integer.MAX_VALUE</tt> if there are more than that.
+	 *
+	 * @return	the effective tickets of the associated thread.
+	 */
+	public int getEffectivePriority() {
+	    return (int) Math.min(effectiveTickets, Integer.MAX_VALUE);
+	}
+
+	/**
+	 * Set the tickets of the associated thread to the specified value.
+	 *
+	 * @param	priority	the new number of tickets.
+	 */
+	public void setPriority(int priority) {
+	    if (this.priority == priority)
+		return;
+
+	    int delta = priority - this.priority;
+	    this.priority = priority;
+
+	    addTickets(delta);
+	}
+
+	/**
+	 * Called when the associated thread starts waiting on the specified
+	 * queue.
+	 *
+	 * @param	waitQueue	the queue that the associated thread is
+	 *				now waiting on.
+	 */
+	public void waitForAccess(LotteryQueue waitQueue) {
+	    // a thread can only wait for one thing at a time
+	    Lib.assertTrue(lotteryQueue == null);
+
+	    lotteryQueue = waitQueue;
+	    waitQueue.add(this);
+	}
+
+	/**
+	 * Called when the associated thread has acquired access to whatever
+	 * is guarded by the specified queue.
+	 *
+	 * @param	waitQueue	the queue the thread now has access to.
+	 */
+	public void acquire(LotteryQueue waitQueue) {
+	    if (!waitQueue.transferPriority)
+		return;
+
+	    if (waitQueue.owner != null)
+		waitQueue.owner.addTickets(-waitQueue.total);
+
+	    waitQueue.owner = this;
+	    addTickets(waitQueue.total);
+	}
+
+	/**
+	 * Change the effective tickets by <tt>delta</tt>, and pass the change
+	 * on to the queue this thread is waiting on, which passes it on to the
+	 * queue's owner.
+	 */
+	void addTickets(long delta) {
+	    if (delta == 0)
+		return;
+
+	    effectiveTickets += delta;
+
+	    if (lotteryQueue != null)
+		lotteryQueue.change(slot, delta);
+	}
+
+	/** Our own tickets plus those donated to us. */
+	private long effectiveTickets;
+
+	/** The queue the associated thread is waiting on, if any. */
+	LotteryQueue lotteryQueue = null;
+	/** Our slot in <tt>lotteryQueue</tt>. */
+	int slot = 0;
     }
 }
@@ -0,0 +1,363 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.LinkedList;
+import java.util.Iterator;
+
+/**
+ * A multi-level feedback queue scheduler. Ready threads are kept at one of
+ * several levels, and the next thread to run is the one that has waited
+ * longest at the highest level (level 0). New threads start at level 0.
+ *
+ * <p>
+ * Each level has an allotment, twice as long as the level above it. A thread
+ * that has used up the allotment of its level is moved down a level, however
+ * many times it gave up the processor along the way, so threads that compute
+ * for a long time sink, and a thread cannot stay at a high level by yielding
+ * or blocking just before its allotment runs out. Every
+ * <tt>MLFQScheduler.boostInterval</tt> ticks, every thread is moved back to
+ * level 0, so threads at the lower levels do not starve, and threads that
+ * have become interactive rise again.
+ *
+ * <p>
+ * A thread that is woken after blocking (on the console, the disk, the alarm,
+ * or another thread) for at least as long as it ran before it blocked is
+ * queued one level above the level it has earned, ahead of the threads at
+ * that level that were preempted or yielded, so it runs soon after the wait is
+ * over. The credit is not an allotment: the time a thread has used is kept,
+ * and the first time it is charged after waking, it goes back to the level
+ * that time has earned. So a thread that waits more than it computes gets to
+ * run sooner, but not for longer, and a thread that computes for a long time
+ * and blocks briefly, to jump ahead of the others, gets nothing for it.
+ *
+ * <p>
+ * Threads are charged for the ticks they actually use, from when they start
+ * running (<tt>threadRunning()</tt>) to when they stop
+ * (<tt>threadStopped()</tt>) or the next timer interrupt, whichever comes
+ * first. A thread at a higher level than the current thread preempts it at
+ * the next timer interrupt.
+ *
+ * <p>
+ * Only the ready queue uses the levels; other thread queues are FIFO.
+ */
+public class MLFQScheduler extends Scheduler {
+    /**
+     * Allocate a new multi-level feedback queue scheduler.
+     */
+    public MLFQScheduler() {
+	numLevels = Config.getInteger("MLFQScheduler.levels", 4);
+	quantum = Config.getInteger("MLFQScheduler.quantum", Stats.TimerTicks);
+	boostInterval = Config.getInteger("MLFQScheduler.boostInterval", 20000);
+
+	Lib.assertTrue(numLevels > 0 && numLevels <= 30 && quantum > 0 &&
+		       boostInterval > 0, "bad MLFQScheduler configuration");
+    }
+
+    /**
+     * Allocate a new thread queue.
+     *
+     * @param	transferPriority	ignored. Threads donate nothing to the
+     *					owner of a queue.
+     * @return	a new thread queue.
+     */
+    public ThreadQueue newThreadQueue(boolean transferPriority) {
+	return new MultiLevelQueue();
+    }
+
+    /**
+     * Allocate the ready queue, the only queue that uses the levels.
+     *
+     * @return	a new thread queue, to be used as the ready queue.
+     */
+    public ThreadQueue newReadyQueue() {
+	readyQueue = new MultiLevelQueue();
+	return readyQueue;
+    }
+
+    /**
+     * Return the level of the specified thread; 0 is the highest.
+     *
+     * @param	thread	the thread to get the level of.
+     * @return	the thread's level.
+     */
+    public int getPriority(KThread thread) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	return getThreadState(thread).level;
+    }
+
+    public int getEffectivePriority(KThread thread) {
+	return getPriority(thread);
+    }
+
+    /**
+     * Charge the current thread for the ticks it has used, and decide whether
+     * it has to yield. It does if it has used up its allotment, in which case
+     * it also moves down a level, or if a higher-level thread is ready. Moves
+     * every thread to level 0 if it is time to.
+     *
+     * @return	<tt>true</tt> if the current thread should yield.
+     */
+    public boolean timerInterrupt() {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	long now = Machine.timer().getTime();
+	if (now >= nextBoost) {
+	    boost();
+	    nextBoost = now + boostInterval;
+	}
+
+	ThreadState state = getThreadState(KThread.currentThread());
+	if (charge(KThread.currentThread(), state))
+	    return true;
+
+	return (readyQueue != null && readyQueue.nonEmpty != 0 &&
+		readyQueue.topLevel() < state.level);
+    }
+
+    public void threadRunning(KThread thread) {
+	ThreadState state = getThreadState(thread);
+	state.runStart = Machine.timer().getTime();
+	state.hasRun = true;
+    }
+
+    public void threadStopped(KThread thread) {
+	ThreadState state = getThreadState(thread);
+	charge(thread, state);
+	state.runStart = -1;
+	state.stopTime = Machine.timer().getTime();
+    }
+
+    /**
+     * Add the ticks the specified thread has run since it was last charged to
+     * the time it has used since the last boost, and move it down to the level
+     * that time has earned if it is above it. At the lowest level, a thread
+     * that has used up the level's allotment starts a new one. Does nothing if
+     * the thread is not running.
+     *
+     * @param	thread	the thread to charge.
+     * @param	state	the scheduling state of the thread.
+     * @return	<tt>true</tt> if the thread used up the allotment of its
+     *		level.
+     */
+    private boolean charge(KThread thread, ThreadState state) {
+	if (state.runStart < 0)
+	    return false;
+
+	long now = Machine.timer().getTime();
+	state.used += now - state.runStart;
+	state.burst += now - state.runStart;
+	state.runStart = now;
+
+	if (state.used < allotmentEnd(state.level))
+	    return false;
+
+	while (state.level < numLevels-1 &&
+	       state.used >= allotmentEnd(state.level))
+	    state.level++;
+
+	if (state.used >= allotmentEnd(state.level))
+	    state.used = allotmentEnd(state.level-1);
+
+	Lib.debug(dbgMLFQ, thread + " used its allotment, down to level "
+		  + state.level);
+	return true;
+    }
+
+    /**
+     * Return the time a thread may use after a boost before it is moved below
+     * the specified level: the sum of the allotments of that level and every
+     * level above it.
+     *
+     * @param	level	the level, or -1 for none.
+     * @return	the end of the level's allotment, in ticks.
+     */
+    private long allotmentEnd(int level) {
+	return (quantum << (level+1)) - quantum;
+    }
+
+    /**
+     * Move every thread to level 0. Threads in the ready queue are moved at
+     * once, keeping their order; other threads are moved the next time their
+     * state is looked at.
+     */
+    private void boost() {
+	Lib.debug(dbgMLFQ, "Moving all threads to level 0");
+
+	epoch++;
+
+	if (readyQueue == null)
+	    return;
+
+	LinkedList<KThread> top = readyQueue.levels[0];
+	for (int i=1; i<numLevels; i++) {
+	    top.addAll(readyQueue.levels[i]);
+	    readyQueue.levels[i].clear();
+	    readyQueue.numWoken[i] = 0;
+	}
+	readyQueue.nonEmpty = top.isEmpty() ? 0 : 1;
+    }
+
+    /**
+     * Return the scheduling state of the specified thread, moving it to level
+     * 0 if there has been a boost since it was last looked at.
+     *
+     * @param	thread	the thread whose scheduling state to return.
+     * @return	the scheduling state of the specified thread.
+     */
+    private ThreadState getThreadState(KThread thread) {
+	if (thread.schedulingState == null)
+	    thread.schedulingState = new ThreadState();
+
+	ThreadState state = (ThreadState) thread.schedulingState;
+	if (state.epoch != epoch) {
+	    state.epoch = epoch;
+	    state.level = 0;
+	    state.used = 0;
+	}
+
+	return state;
+    }
+
+    private class MultiLevelQueue extends ThreadQueue {
+	@SuppressWarnings("unchecked")
+	MultiLevelQueue() {
+	    levels = (LinkedList<KThread>[]) new LinkedList<?>[numLevels];
+	    numWoken = new int[numLevels];
+	    for (int i=0; i<numLevels; i++)
+		levels[i] = new LinkedList<KThread>();
+	}
+
+	/**
+	 * Add a thread to the end of the list for its level. The current
+	 * thread is charged first, so that it goes to the level it has earned.
+	 * A thread woken after blocking at least as long as it ran is credited
+	 * with one level, and goes behind only the threads woken before it.
+	 *
+	 * @param	thread	the thread to append to the queue.
+	 */
+	public void waitForAccess(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    ThreadState state = getThreadState(thread);
+
+	    if (thread == KThread.currentThread())
+		charge(thread, state);
+
+	    int level = (this == readyQueue) ? state.level : 0;
+
+	    // a forked thread has not run yet, so it was not blocked
+	    boolean credited = false;
+	    if (this == readyQueue && thread != KThread.currentThread() &&
+		state.hasRun) {
+		long blocked = Machine.timer().getTime() - state.stopTime;
+		credited = (blocked >= state.burst);
+		state.burst = 0;
+	    }
+
+	    if (credited) {
+		if (level > 0) {
+		    level = --state.level;
+		    Lib.debug(dbgMLFQ, thread + " woken, up to level "
+			      + level);
+		}
+		levels[level].add(numWoken[level]++, thread);
+	    }
+	    else {
+		levels[level].add(thread);
+	    }
+	    nonEmpty |= 1 << level;
+	}
+
+	/**
+	 * Remove the first thread from the highest non-empty level.
+	 *
+	 * @return	the next thread, or <tt>null</tt> if the queue is empty.
+	 */
+	public KThread nextThread() {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    if (nonEmpty == 0)
+		return null;
+
+	    int level = topLevel();
+	    KThread thread = levels[level].removeFirst();
+	    if (numWoken[level] > 0)
+		numWoken[level]--;
+	    if (levels[level].isEmpty())
+		nonEmpty &= ~(1 << level);
+
+	    return thread;
+	}
+
+	/**
+	 * The specified thread has received access, without using
+	 * <tt>waitForAccess()</tt> or <tt>nextThread()</tt>. Assert that no
+	 * threads are waiting for access.
+	 */
+	public void acquire(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    Lib.assertTrue(nonEmpty == 0);
+	}
+
+	/**
+	 * Print out the contents of the queue, highest level first.
+	 */
+	public void print() {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    for (int i=0; i<numLevels; i++) {
+		for (Iterator<KThread> j=levels[i].iterator(); j.hasNext(); )
+		    System.out.print(j.next() + "(" + i + ") ");
+	    }
+	}
+
+	/**
+	 * Return the highest non-empty level. The queue must not be empty.
+	 */
+	int topLevel() {
+	    return Integer.numberOfTrailingZeros(nonEmpty);
+	}
+
+	private LinkedList<KThread>[] levels;
+	/** Bit <i>i</i> is set if level <i>i</i> is not empty. */
+	private int nonEmpty = 0;
+	/**
+	 * The number of woken threads at the front of each level, which are
+	 * ahead of the threads that were preempted or yielded.
+	 */
+	private int[] numWoken;
+    }
+
+    /**
+     * The scheduling state of a thread: its level, and the time it has used
+     * since the last boost.
+     */
+    private static class ThreadState {
+	int level = 0;
+	long used = 0;
+	int epoch = 0;
+	/** When the thread was last charged, or -1 if it is not running. */
+	long runStart = -1;
+	/** <tt>true</tt> once the thread has started running. */
+	boolean hasRun = false;
+	/** The ticks the thread has run since it was last woken. */
+	long burst = 0;
+	/** When the thread last stopped running. */
+	long stopTime = 0;
+    }
+
+    private int numLevels;
+    /** The allotment of level 0, in ticks. */
+    private long quantum;
+    private long boostInterval;
+
+    private MultiLevelQueue readyQueue = null;
+    private long nextBoost = 0;
+    /** Incremented by every boost. */
+    private int epoch = 0;
+
+    private static final char dbgMLFQ = 'q';
+}
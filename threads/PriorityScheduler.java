@@ -2,10 +2,6 @@ package nachos.threads;
 
 import nachos.machine.*;
 
-import java.util.TreeSet;
-import java.util.HashSet;
-import java.util.Iterator;
-
 /**
  * A scheduler that chooses threads based on their priorities.
  *
@@ -96,6 +92,71 @@ public class PriorityScheduler extends Scheduler {
 	return true;
     }
 
+    /**
+     * Test if this module is working: check that threads leave a queue
+     * highest priority first, in FIFO order within a priority, and that
+     * donations pass along a chain of owners and are taken back when the
+     * owners give up access. Uses a scheduler of its own, and threads that
+     * are never forked.
+     */
+    public static void selfTest() {
+	PriorityScheduler scheduler = new PriorityScheduler();
+	boolean intStatus = Machine.interrupt().disable();
+
+	KThread low = new KThread().setName("low");
+	KThread mid = new KThread().setName("mid");
+	KThread high = new KThread().setName("high");
+	KThread mid2 = new KThread().setName("mid2");
+	scheduler.setPriority(low, 1);
+	scheduler.setPriority(mid, 3);
+	scheduler.setPriority(high, 6);
+	scheduler.setPriority(mid2, 3);
+
+	ThreadQueue queue = scheduler.newThreadQueue(false);
+	queue.waitForAccess(low);
+	queue.waitForAccess(mid);
+	queue.waitForAccess(high);
+	queue.waitForAccess(mid2);
+	Lib.assertTrue(queue.nextThread() == high && queue.nextThread() == mid &&
+		       queue.nextThread() == mid2 && queue.nextThread() == low &&
+		       queue.nextThread() == null,
+		       "threads left a priority queue in the wrong order");
+
+	// low holds a, which mid waits for while holding b, which high wants
+	ThreadQueue a = scheduler.newThreadQueue(true);
+	ThreadQueue b = scheduler.newThreadQueue(true);
+	a.acquire(low);
+	b.acquire(mid);
+	a.waitForAccess(mid);
+	b.waitForAccess(high);
+	Lib.assertTrue(scheduler.getEffectivePriority(mid) == 6 &&
+		       scheduler.getEffectivePriority(low) == 6,
+		       "priority was not donated along the chain");
+
+	scheduler.setPriority(high, 2);
+	Lib.assertTrue(scheduler.getEffectivePriority(mid) == 3 &&
+		       scheduler.getEffectivePriority(low) == 3,
+		       "a lowered priority was not passed along the chain");
+	scheduler.setPriority(high, 6);
+
+	// low gives a to mid, which still has high waiting on b
+	Lib.assertTrue(a.nextThread() == mid);
+	Lib.assertTrue(scheduler.getEffectivePriority(low) == 1 &&
+		       scheduler.getEffectivePriority(mid) == 6,
+		       "a donation was not taken back from the old owner");
+
+	Lib.assertTrue(b.nextThread() == high);
+	Lib.assertTrue(scheduler.getEffectivePriority(mid) == 3 &&
+		       scheduler.getEffectivePriority(high) == 6,
+		       "a donation was not taken back when the wait ended");
+
+	Lib.assertTrue(a.nextThread() == null && b.nextThread() == null);
+	Lib.assertTrue(scheduler.getEffectivePriority(mid) == 3 &&
+		       scheduler.getEffectivePriority(high) == 6);
+
+	Machine.interrupt().restore(intStatus);
+    }
+
     /**
      * The default priority for a new thread. Do not change this value.
      */
@@ -122,8 +183,28 @@ public class PriorityScheduler extends Scheduler {
 	return (ThreadState) thread.schedulingState;
     }
 
+    /**
+     * Return the index of the highest bit set in <tt>mask</tt>, or -1 if no
+     * bit is set.
+     */
+    private static int highestBit(int mask) {
+	return 31 - Integer.numberOfLeadingZeros(mask);
+    }
+
     /**
      * A <tt>ThreadQueue</tt> that sorts threads by priority.
+     *
+     * <p>
+     * Waiting threads are kept in one FIFO list per effective priority, linked
+     * through their <tt>ThreadState</tt>s, and a bitmap records which lists
+     * are not empty, so finding, adding, and removing a thread take constant
+     * time. If a waiting thread's effective priority changes, it moves to the
+     * end of the list for its new priority.
+     *
+     * <p>
+     * If the queue transfers priority, its owner receives a donation of the
+     * highest effective priority of the threads waiting. The donation is
+     * updated whenever that priority changes.
      */
     protected class PriorityQueue extends ThreadQueue {
 	PriorityQueue(boolean transferPriority) {
@@ -142,8 +223,22 @@ public class PriorityScheduler extends Scheduler {
 
 	public KThread nextThread() {
 	    Lib.assertTrue(Machine.interrupt().disabled());
-	    // implement me
-	    return null;
+
+	    // the owner gives up access, and with it any donation
+	    if (owner != null) {
+		owner.revoke(topPriority());
+		owner = null;
+	    }
+
+	    ThreadState next = pickNextThread();
+	    if (next == null)
+		return null;
+
+	    unlink(next);
+	    next.waitingOn = null;
+	    next.acquire(this);
+
+	    return next.thread;
 	}
 
 	/**
@@ -154,13 +249,96 @@ public class PriorityScheduler extends Scheduler {
 	 *		return.
 	 */
 	protected ThreadState pickNextThread() {
-	    // implement me
-	    return null;
+	    int top = topPriority();
+	    return (top < 0) ? null : head[top];
 	}
 	
 	public void print() {
 	    Lib.assertTrue(Machine.interrupt().disabled());
-	    // implement me (if you want)
+
+	    for (int p=priorityMaximum; p>=priorityMinimum; p--) {
+		for (ThreadState s=head[p]; s!=null; s=s.next)
+		    System.out.print(s.thread + "(" + p + ") ");
+	    }
+	}
+
+	/**
+	 * Return the highest effective priority of any waiting thread, or -1
+	 * if no thread is waiting.
+	 */
+	int topPriority() {
+	    return highestBit(nonEmpty);
+	}
+
+	/**
+	 * Append a thread to the list for its effective priority.
+	 */
+	void link(ThreadState state) {
+	    int top = topPriority();
+	    append(state);
+	    topChanged(top);
+	}
+
+	/**
+	 * Remove a thread from the list for its effective priority.
+	 */
+	void unlink(ThreadState state) {
+	    int top = topPriority();
+	    remove(state);
+	    topChanged(top);
+	}
+
+	/**
+	 * Move a waiting thread to the end of the list for a new effective
+	 * priority.
+	 */
+	void move(ThreadState state, int effectivePriority) {
+	    int top = topPriority();
+	    remove(state);
+	    state.effectivePriority = effectivePriority;
+	    append(state);
+	    topChanged(top);
+	}
+
+	private void append(ThreadState state) {
+	    int p = state.effectivePriority;
+
+	    state.prev = tail[p];
+	    state.next = null;
+	    if (tail[p] == null)
+		head[p] = state;
+	    else
+		tail[p].next = state;
+	    tail[p] = state;
+	    nonEmpty |= 1 << p;
+	}
+
+	private void remove(ThreadState state) {
+	    int p = state.effectivePriority;
+
+	    if (state.prev == null)
+		head[p] = state.next;
+	    else
+		state.prev.next = state.next;
+	    if (state.next == null)
+		tail[p] = state.prev;
+	    else
+		state.next.prev = state.prev;
+	    state.prev = state.next = null;
+
+	    if (head[p] == null)
+		nonEmpty &= ~(1 << p);
+	}
+
+	/**
+	 * If the highest waiting priority has changed from <tt>top</tt>, move
+	 * the owner's donation to the new one.
+	 */
+	private void topChanged(int top) {
+	    if (owner != null && topPriority() != top) {
+		owner.revoke(top);
+		owner.donate(topPriority());
+	    }
 	}
 
 	/**
@@ -168,6 +346,16 @@ public class PriorityScheduler extends Scheduler {
 	 * threads to the owning thread.
 	 */
 	public boolean transferPriority;
+
+	/**
+	 * The thread with access, if this queue transfers priority.
+	 */
+	ThreadState owner = null;
+
+	private ThreadState[] head = new ThreadState[priorityMaximum+1];
+	private ThreadState[] tail = new ThreadState[priorityMaximum+1];
+	/** Bit <i>p</i> is set if a thread with effective priority <i>p</i> waits. */
+	private int nonEmpty = 0;
     }
 
     /**
@@ -175,6 +363,14 @@ public class PriorityScheduler extends Scheduler {
      * priority, its effective priority, any objects it owns, and the queue
      * it's waiting for, if any.
      *
+     * <p>
+     * The effective priority is cached. Each queue a thread owns donates its
+     * highest waiting priority, and the thread counts how many donations it
+     * has at each priority, so adding or removing one takes constant time. A
+     * change in effective priority is passed on to the owner of the queue the
+     * thread is waiting on, and so on along the chain, stopping as soon as a
+     * thread's effective priority does not change.
+     *
      * @see	nachos.threads.KThread#schedulingState
      */
     protected class ThreadState {
@@ -186,8 +382,9 @@ public class PriorityScheduler extends Scheduler {
 	 */
 	public ThreadState(KThread thread) {
 	    this.thread = thread;
-	    
-	    setPriority(priorityDefault);
+
+	    this.priority = priorityDefault;
+	    this.effectivePriority = priorityDefault;
 	}
 
 	/**
@@ -205,8 +402,7 @@ public class PriorityScheduler extends Scheduler {
 	 * @return	the effective priority of the associated thread.
 	 */
 	public int getEffectivePriority() {
-	    // implement me
-	    return priority;
+	    return effectivePriority;
 	}
 
 	/**
@@ -220,7 +416,7 @@ public class PriorityScheduler extends Scheduler {
 	    
 	    this.priority = priority;
 	    
-	    // implement me
+	    updateEffectivePriority();
 	}
 
 	/**
@@ -236,7 +432,11 @@ public class PriorityScheduler extends Scheduler {
 	 * @see	nachos.threads.ThreadQueue#waitForAccess
 	 */
 	public void waitForAccess(PriorityQueue waitQueue) {
-	    // implement me
+	    // a thread can only wait for one thing at a time
+	    Lib.assertTrue(waitingOn == null);
+
+	    waitingOn = waitQueue;
+	    waitQueue.link(this);
 	}
 
 	/**
@@ -250,12 +450,72 @@ public class PriorityScheduler extends Scheduler {
 	 * @see	nachos.threads.ThreadQueue#nextThread
 	 */
 	public void acquire(PriorityQueue waitQueue) {
-	    // implement me
-	}	
+	    if (!waitQueue.transferPriority)
+		return;
+
+	    if (waitQueue.owner != null)
+		waitQueue.owner.revoke(waitQueue.topPriority());
+
+	    waitQueue.owner = this;
+	    donate(waitQueue.topPriority());
+	}
+
+	/**
+	 * Receive a donation of the specified priority from a queue this
+	 * thread owns. A priority of -1 (an empty queue) is ignored.
+	 */
+	void donate(int priority) {
+	    if (priority < 0)
+		return;
+
+	    if (donations[priority]++ == 0)
+		donated |= 1 << priority;
+	    updateEffectivePriority();
+	}
+
+	/**
+	 * Take back a donation made with <tt>donate()</tt>.
+	 */
+	void revoke(int priority) {
+	    if (priority < 0)
+		return;
+
+	    if (--donations[priority] == 0)
+		donated &= ~(1 << priority);
+	    updateEffectivePriority();
+	}
+
+	/**
+	 * Recompute the effective priority, and if it changed, move this
+	 * thread within the queue it is waiting on, which passes the change on
+	 * to that queue's owner.
+	 */
+	private void updateEffectivePriority() {
+	    int effective = Math.max(priority, highestBit(donated));
+	    if (effective == effectivePriority)
+		return;
+
+	    if (waitingOn == null)
+		effectivePriority = effective;
+	    else
+		waitingOn.move(this, effective);
+	}
 
 	/** The thread with which this object is associated. */	   
 	protected KThread thread;
 	/** The priority of the associated thread. */
 	protected int priority;
+	/** The cached effective priority of the associated thread. */
+	protected int effectivePriority;
+
+	/** The queue the associated thread is waiting on, if any. */
+	PriorityQueue waitingOn = null;
+	/** The neighbours of this thread in <tt>waitingOn</tt>. */
+	ThreadState prev = null, next = null;
+
+	/** The number of owned queues donating each priority. */
+	private int[] donations = new int[priorityMaximum+1];
+	/** Bit <i>p</i> is set if <tt>donations[p]</tt> is not zero. */
+	private int donated = 0;
     }
 }
@@ -52,6 +52,19 @@ public abstract class Scheduler {
      */
     public abstract ThreadQueue newThreadQueue(boolean transferPriority);
 
+    /**
+     * Allocate the ready queue, the queue of threads waiting for the
+     * processor. <tt>KThread</tt> calls this once, when the first thread is
+     * created. Schedulers that treat the ready queue differently from other
+     * queues override this to keep a reference to it; by default it is just
+     * <tt>newThreadQueue(false)</tt>.
+     *
+     * @return	a new thread queue, to be used as the ready queue.
+     */
+    public ThreadQueue newReadyQueue() {
+	return newThreadQueue(false);
+    }
+
     /**
      * Get the priority of the specified thread. Must be called with
      * interrupts disabled.
@@ -154,4 +167,35 @@ public abstract class Scheduler {
     public boolean decreasePriority() {
 	return false;
     }
+
+    /**
+     * Called by the alarm at every timer interrupt, with interrupts disabled,
+     * to decide whether the current thread's time slice is over. Schedulers
+     * that give threads longer time slices than the interval between timer
+     * interrupts, or that keep track of the time threads use, override this.
+     *
+     * @return	<tt>true</tt> if the current thread should yield.
+     */
+    public boolean timerInterrupt() {
+	return true;
+    }
+
+    /**
+     * Called by <tt>KThread.restoreState()</tt>, with interrupts disabled,
+     * when the specified thread starts running. Schedulers that charge
+     * threads for the time they actually use override this.
+     *
+     * @param	thread	the thread that is now running.
+     */
+    public void threadRunning(KThread thread) {
+    }
+
+    /**
+     * Called by <tt>KThread.saveState()</tt>, with interrupts disabled, when
+     * the specified thread is about to give up the processor.
+     *
+     * @param	thread	the thread that is stopping.
+     */
+    public void threadStopped(KThread thread) {
+    }
 }
@@ -46,12 +46,21 @@ public class ThreadedKernel extends Kernel {
 
   /**
    * Test this kernel. Test the <tt>KThread</tt>, <tt>Semaphore</tt>,
-   * <tt>SynchList</tt>, and <tt>ElevatorBank</tt> classes. Note that the
-   * autograder never calls this method, so it is safe to put additional tests
-   * here.
+   * <tt>SynchList</tt>, and <tt>ElevatorBank</tt> classes, and the priority
+   * or lottery scheduler if it is the one in use. Note that the autograder
+   * never calls this method, so it is safe to put additional tests here.
    */
   @Override
   public void selfTest() {
+    int switchRounds = Config.getInteger("KThread.switchBenchmark", 0);
+    if (switchRounds > 0) {
+      KThread.switchBenchmark(switchRounds);
+    }
+
+    if (scheduler instanceof LotteryScheduler)
+      LotteryScheduler.selfTest();
+    else if (scheduler instanceof PriorityScheduler)
+      PriorityScheduler.selfTest();
     KThread.selfTest();
     // Semaphore.selfTest();
     // SynchList.selfTest();
@@ -67,10 +76,12 @@ public class ThreadedKernel extends Kernel {
   }
 
   /**
-   * Terminate this kernel. Never returns.
+   * Terminate this kernel, printing the thread accounting if it was asked for.
+   * Never returns.
    */
   @Override
   public void terminate() {
+    KThread.printStatistics();
     Machine.halt();
   }
 
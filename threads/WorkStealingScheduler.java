@@ -0,0 +1,201 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+
+/**
+ * A round-robin scheduler whose ready queue is split into several partitions,
+ * each a queue of its own. A thread that becomes ready is added to the end of
+ * the partition it was last taken from, or of the partition named by its
+ * affinity hint (see <tt>KThread.setAffinity()</tt>), or, if it has never
+ * run, of the current partition. The partitions take turns choosing the next
+ * thread, one decision each, from the front of their own queue; a partition
+ * whose queue is empty steals the thread at the end of another partition's
+ * queue, which is the one that would have waited longest there.
+ *
+ * <p>
+ * The number of partitions is <tt>WorkStealingScheduler.partitions</tt>, by
+ * default 4. Partitions are not tied to processors, and work the same whether
+ * or not the machine has one: only one Nachos thread runs at a time, so there
+ * is no running processor to pick a partition, and the partitions are
+ * protected by disabling interrupts, like every other scheduler's queues.
+ *
+ * <p>
+ * Only the ready queue is partitioned; other thread queues use partition 0
+ * alone, so they are FIFO.
+ */
+public class WorkStealingScheduler extends Scheduler {
+    /**
+     * Allocate a new work-stealing scheduler.
+     */
+    public WorkStealingScheduler() {
+	numPartitions = Config.getInteger("WorkStealingScheduler.partitions",
+					  4);
+	Lib.assertTrue(numPartitions > 0,
+		       "bad value for WorkStealingScheduler.partitions");
+    }
+
+    /**
+     * Allocate a new thread queue.
+     *
+     * @param	transferPriority	ignored.
+     * @return	a new thread queue.
+     */
+    public ThreadQueue newThreadQueue(boolean transferPriority) {
+	return new StealingQueue();
+    }
+
+    /**
+     * Allocate the ready queue, the only queue that uses its partitions.
+     *
+     * @return	a new thread queue, to be used as the ready queue.
+     */
+    public ThreadQueue newReadyQueue() {
+	readyQueue = new StealingQueue();
+	return readyQueue;
+    }
+
+    /**
+     * Return the partition that made the last scheduling decision.
+     *
+     * @return	the current partition, between 0 and the number of partitions
+     *		minus 1.
+     */
+    public int currentPartition() {
+	return currentPartition;
+    }
+
+    /**
+     * Return the scheduling state of the specified thread.
+     *
+     * @param	thread	the thread whose scheduling state to return.
+     * @return	the scheduling state of the specified thread.
+     */
+    private ThreadState getThreadState(KThread thread) {
+	if (thread.schedulingState == null)
+	    thread.schedulingState = new ThreadState(currentPartition);
+
+	return (ThreadState) thread.schedulingState;
+    }
+
+    private class StealingQueue extends ThreadQueue {
+	@SuppressWarnings("unchecked")
+	StealingQueue() {
+	    partitions = (ArrayDeque<KThread>[]) new ArrayDeque<?>[numPartitions];
+	}
+
+	/**
+	 * Add a thread to the end of a partition: its affinity partition if it
+	 * has one, otherwise the partition it was last taken from.
+	 *
+	 * @param	thread	the thread to add to the queue.
+	 */
+	public void waitForAccess(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    int partition = 0;
+	    if (this == readyQueue) {
+		partition = thread.getAffinity();
+		if (partition < 0)
+		    partition = getThreadState(thread).partition;
+		partition %= numPartitions;
+	    }
+
+	    if (partitions[partition] == null)
+		partitions[partition] = new ArrayDeque<KThread>();
+
+	    partitions[partition].addLast(thread);
+	    size++;
+	}
+
+	/**
+	 * Pass the next scheduling decision to the next partition, and return
+	 * its first thread. If it is empty, steal the last thread in the first
+	 * non-empty partition after it.
+	 *
+	 * @return	the next thread, or <tt>null</tt> if the queue is empty.
+	 */
+	public KThread nextThread() {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    int partition = 0;
+	    if (this == readyQueue) {
+		currentPartition = (currentPartition+1) % numPartitions;
+		partition = currentPartition;
+	    }
+
+	    if (size == 0)
+		return null;
+
+	    size--;
+
+	    KThread thread;
+	    if (partitions[partition] != null &&
+		!partitions[partition].isEmpty()) {
+		thread = partitions[partition].pollFirst();
+	    }
+	    else {
+		int victim = partition;
+		do {
+		    victim = (victim+1) % numPartitions;
+		} while (partitions[victim] == null ||
+			 partitions[victim].isEmpty());
+
+		thread = partitions[victim].pollLast();
+	    }
+
+	    if (this == readyQueue)
+		getThreadState(thread).partition = partition;
+
+	    return thread;
+	}
+
+	/**
+	 * The specified thread has received access, without using
+	 * <tt>waitForAccess()</tt> or <tt>nextThread()</tt>. Assert that no
+	 * threads are waiting for access.
+	 */
+	public void acquire(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    Lib.assertTrue(size == 0);
+	}
+
+	/**
+	 * Print out the contents of the queue, one partition at a time.
+	 */
+	public void print() {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    for (int i=0; i<numPartitions; i++) {
+		if (partitions[i] == null)
+		    continue;
+
+		for (Iterator<KThread> j=partitions[i].iterator(); j.hasNext(); )
+		    System.out.print(j.next() + "(" + i + ") ");
+	    }
+	}
+
+	/** The queue of each partition, allocated when first used. */
+	private ArrayDeque<KThread>[] partitions;
+	/** The number of threads in all the partitions. */
+	private int size = 0;
+    }
+
+    /**
+     * The scheduling state of a thread: the partition it was last taken from.
+     */
+    private static class ThreadState {
+	ThreadState(int partition) {
+	    this.partition = partition;
+	}
+
+	int partition;
+    }
+
+    private int numPartitions;
+    private StealingQueue readyQueue = null;
+    private int currentPartition = 0;
+}
@@ -24,11 +24,28 @@ public class UThread extends KThread {
 	this.process = process;
     }
 
+    /**
+     * Continue with the user registers now in the processor, instead of
+     * starting the program from the beginning. Used to resume a program
+     * after restoring a checkpoint.
+     */
+    void resumeFromProcessor() {
+	for (int i=0; i<Processor.numUserRegisters; i++)
+	    userRegisters[i] = Machine.processor().readRegister(i);
+
+	resuming = true;
+    }
+
     private void runProgram() {
-	process.initRegisters();
+	// restoreState() has already loaded the registers of a resumed program
+	if (!resuming)
+	    process.initRegisters();
 	process.restoreState();
 
-	Machine.processor().run();
+	if (resuming)
+	    Machine.processor().resume();
+	else
+	    Machine.processor().run();
 	
 	Lib.assertNotReached();
     }
@@ -72,4 +89,7 @@ public class UThread extends KThread {
      * The process to which this thread belongs.
      */
     public UserProcess process;
+
+    /** Set by <tt>resumeFromProcessor()</tt>. */
+    private boolean resuming = false;
 }
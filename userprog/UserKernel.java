@@ -166,7 +166,8 @@ public class UserKernel extends ThreadedKernel {
     /**
      * Start running user programs, by creating a process and running a shell
      * program in it. The name of the shell program it must run is returned by
-     * <tt>Machine.getShellProgramName()</tt>.
+     * <tt>Machine.getShellProgramName()</tt>. If Nachos was restored from a
+     * checkpoint, the process resumes the program instead.
      *
      * @see	nachos.machine.Machine#getShellProgramName
      */
@@ -176,7 +177,10 @@ public class UserKernel extends ThreadedKernel {
 	UserProcess process = UserProcess.newUserProcess();
 	
 	String shellProgram = Machine.getShellProgramName();	
-	Lib.assertTrue(process.execute(shellProgram, new String[] { }));
+	if (Machine.restoredFromCheckpoint())
+	    Lib.assertTrue(process.resume(shellProgram));
+	else
+	    Lib.assertTrue(process.execute(shellProgram, new String[] { }));
 
 	KThread.currentThread().finish();
     }
@@ -278,7 +282,8 @@ public class UserKernel extends ThreadedKernel {
   /**
    * Start running user programs, by creating a process and running a shell
    * program in it. The name of the shell program it must run is returned by
-   * <tt>Machine.getShellProgramName()</tt>.
+   * <tt>Machine.getShellProgramName()</tt>. If Nachos was restored from a
+   * checkpoint, the process resumes the program instead.
    *
    * @see nachos.machine.Machine#getShellProgramName
    */
@@ -289,7 +294,10 @@ public class UserKernel extends ThreadedKernel {
     UserProcess process = UserProcess.newUserProcess();
 
     String shellProgram = Machine.getShellProgramName();
-    Lib.assertTrue(process.execute(shellProgram, new String[] {}));
+    if (Machine.restoredFromCheckpoint())
+      Lib.assertTrue(process.resume(shellProgram));
+    else
+      Lib.assertTrue(process.execute(shellProgram, new String[] {}));
 
     KThread.currentThread().finish();
   }
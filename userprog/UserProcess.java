@@ -6,6 +6,7 @@ import java.util.NoSuchElementException;
 
 import nachos.machine.Coff;
 import nachos.machine.CoffSection;
+import nachos.machine.Kernel;
 import nachos.machine.Lib;
 import nachos.machine.Machine;
 import nachos.machine.OpenFile;
@@ -103,6 +104,41 @@ public class UserProcess {
     return true;
   }
 
+  /**
+   * Resume the program that was running when the checkpoint Nachos was
+   * restored from was saved (see <tt>Machine.restoredFromCheckpoint()</tt>).
+   * Instead of loading the program, takes over the page table and registers
+   * restored into the processor, and the physical pages the page table maps,
+   * and then forks a thread to continue it. Open files and children of the
+   * original process are not restored.
+   *
+   * @param name
+   *          the name of the program, for the thread.
+   * @return <tt>true</tt> if the program was resumed, or <tt>false</tt> if the
+   *         processor uses a TLB, so no page table was restored.
+   */
+  public boolean resume(String name) {
+    if (Machine.processor().hasTLB())
+      return false;
+
+    this.pageTable = Machine.processor().getPageTable();
+    this.numPages = this.pageTable.length;
+
+    UserKernel.ppMutex.P();
+    for (int i = 0; i < this.pageTable.length; i++) {
+      if (this.pageTable[i].valid)
+        UserKernel.ppgs.remove(Integer.valueOf(this.pageTable[i].ppn));
+    }
+    UserKernel.ppMutex.V();
+
+    ++UserKernel.numProcesses;
+
+    UThread thread = new UThread(this);
+    thread.resumeFromProcessor();
+    thread.setName(name).fork();
+    return true;
+  }
+
   /**
    * Save the state of this process in preparation for a context switch. Called
    * by <tt>UThread.saveState()</tt>.
@@ -178,7 +214,7 @@ public class UserProcess {
     int bytesWritten;
     int leftToWrite = length;
     int bufOffset = offset;
-    byte[] memory = Machine.processor().getMemory();
+    Processor processor = Machine.processor();
     int vpn = Processor.pageFromAddress(vaddr);
     int vpnOffset = Processor.offsetFromAddress(vaddr);
     int pageOffset = vpnOffset;
@@ -197,7 +233,7 @@ public class UserProcess {
     while (bytesWritten < length)
       if (pageOffset + leftToWrite > pageSize) {
         int amountToWrite = pageSize - pageOffset;
-        System.arraycopy(memory, currAddr, data, bufOffset, amountToWrite);
+        processor.readMemory(currAddr, data, bufOffset, amountToWrite);
         bytesWritten += amountToWrite;
         bufOffset += amountToWrite;
         leftToWrite = length - bytesWritten;
@@ -215,7 +251,7 @@ public class UserProcess {
           currAddr = currPpn * pageSize;
         }
       } else {
-        System.arraycopy(memory, currAddr, data, bufOffset, leftToWrite);
+        processor.readMemory(currAddr, data, bufOffset, leftToWrite);
         bytesWritten += leftToWrite;
         bufOffset += leftToWrite;
       }
@@ -258,7 +294,7 @@ public class UserProcess {
     int bytesWritten;
     int leftToWrite = length;
     int bufOffset = offset;
-    byte[] memory = Machine.processor().getMemory();
+    Processor processor = Machine.processor();
     int vpn = Processor.pageFromAddress(vaddr);
     int vpnOffset = Processor.offsetFromAddress(vaddr);
     int pageOffset = vpnOffset;
@@ -275,13 +311,13 @@ public class UserProcess {
       return 0;
 
     // for now, just assume that virtual addresses equal physical addresses
-    if (vaddr < 0 || vaddr >= memory.length)
+    if (vaddr < 0 || vaddr >= processor.getNumPhysPages() * pageSize)
       return 0;
 
     while (bytesWritten < length)
       if (pageOffset + leftToWrite > pageSize) {
         int amountToWrite = pageSize - pageOffset;
-        System.arraycopy(memory, currAddr, data, bufOffset, amountToWrite);
+        processor.writeMemory(currAddr, data, bufOffset, amountToWrite);
         bytesWritten += amountToWrite;
         bufOffset += amountToWrite;
         leftToWrite = length - bytesWritten;
@@ -299,7 +335,7 @@ public class UserProcess {
           currAddr = currPpn * pageSize;
         }
       } else {
-        System.arraycopy(memory, currAddr, data, bufOffset, leftToWrite);
+        processor.writeMemory(currAddr, data, bufOffset, leftToWrite);
         bytesWritten += leftToWrite;
         bufOffset += leftToWrite;
       }
@@ -470,13 +506,14 @@ public class UserProcess {
   }
 
   /**
-   * Handle the halt() system call.
+   * Handle the halt() system call. The kernel is terminated, rather than the
+   * machine halted directly, so that it can print its statistics first.
    */
   private int handleHalt() {
     if (this != UserKernel.rootProcess)
       return 0;
-    Machine.halt();
-    Lib.assertNotReached("Machine.halt() did not halt machine!");
+    Kernel.kernel.terminate();
+    Lib.assertNotReached("Kernel.terminate() did not halt machine!");
     return 0;
   }
 